@@ -0,0 +1,125 @@
+package gdbuildmaker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Resources shared by the heuristic searches: the constellations and their
+ * values, the requirement index, and a BuildFinisher for each thread.
+ */
+public abstract class AbstractBuildSearch implements BuildSearch {
+	protected final List<Constellation> sortedConstellations;
+	protected final int numConstellations;
+	protected final Constellation[] constellations; // constellations by ordinal
+	protected final double[] cValues; // constellation values by constellation ordinal
+	protected final RequirementIndex requirementIndex;
+	protected final int width; // long words in a constellation bitset
+	protected final TopBuilds topBuilds;
+	
+	private final BuildFinisher.Builder bfBuilder;
+	private final ThreadLocal<BuildFinisher> buildFinishers;
+	
+	protected final LongAdder iterations;
+	protected volatile boolean continueSearching;
+	
+	private ForkJoinPool pool;
+	private boolean ownsPool;
+	private ForkJoinTask<?> root;
+	
+	protected AbstractBuildSearch(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds) {
+		final Map<Constellation, Double> values = constellationValues;
+		
+		sortedConstellations = new ArrayList<Constellation>(values.keySet());
+		Collections.sort(sortedConstellations, new Comparator<Constellation>() {
+			public int compare(Constellation c1, Constellation c2) {
+				return values.get(c1).compareTo(values.get(c2));
+			}
+		});
+		
+		numConstellations = sortedConstellations.size();
+		constellations = new Constellation[numConstellations];
+		cValues = new double[numConstellations];
+		for (Constellation c : sortedConstellations) {
+			constellations[c.getOrdinal()] = c;
+			cValues[c.getOrdinal()] = values.get(c);
+		}
+		
+		requirementIndex = new RequirementIndex(constellations);
+		width = requirementIndex.width();
+		this.topBuilds = topBuilds;
+		
+		bfBuilder = new BuildFinisher.Builder(sortedConstellations, requirementIndex, starValues);
+		buildFinishers = new ThreadLocal<BuildFinisher>() {
+			protected BuildFinisher initialValue() {
+				return bfBuilder.build();
+			}
+		};
+		
+		iterations = new LongAdder();
+		continueSearching = true;
+	}
+	
+	public void start(int numThreads) {
+		start(new ForkJoinPool(numThreads));
+		ownsPool = true;
+	}
+	
+	public void start(ForkJoinPool pool) {
+		this.pool = pool;
+		ownsPool = false;
+		root = pool.submit(rootTask(pool.getParallelism()));
+	}
+	
+	public void stop() {
+		continueSearching = false;
+		if (pool == null) { return; }
+		if (ownsPool) {
+			pool.shutdown();
+			try {
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {}
+		} else {
+			root.quietlyJoin();
+		}
+	}
+	
+	public boolean isFinished() {
+		return root != null && root.isDone();
+	}
+	
+	public long getIterations() {
+		return iterations.sum();
+	}
+	
+	/**
+	 * @return the task that runs the whole search on the pool
+	 */
+	protected abstract ForkJoinTask<?> rootTask(int numThreads);
+	
+	/**
+	 * Finds the best use of a build's unspent stars with the calling thread's
+	 *  BuildFinisher, and gives the finished build to TopBuilds if it could
+	 *  enter them. Counts as one iteration.
+	 * 
+	 * @return the value of the finished build
+	 */
+	protected double finish(ConstellationSet build, int buildStars, double buildValue,
+			AffinityValues buildAffinities) {
+		BuildFinisher buildFinisher = buildFinishers.get();
+		double value = buildValue + buildFinisher.finish(build, buildStars, buildAffinities);
+		
+		if (value > topBuilds.getThreshold()) {
+			topBuilds.submit(build, buildFinisher.getPartials(), value);
+		}
+		iterations.increment();
+		return value;
+	}
+}
@@ -2,65 +2,152 @@ package gdbuildmaker;
 
 import java.util.Arrays;
 
+/**
+ * One value for each affinity, packed into bit fields of a single long.
+ * Field a holds the value of the affinity with ordinal a in its low
+ * VALUE_BITS bits, and has a guard bit above them that is always clear in a
+ * stored value. Adding or subtracting all affinities is then one long
+ * addition, and comparing all of them is one subtraction and mask (see
+ * fulfills(long, long)): with the guard bits set in the minuend, a field
+ * that is smaller than the subtrahend borrows its guard bit, and no borrow
+ * crosses into the next field.
+ */
 public class AffinityValues {
-	private int[] affinityValues;
-	
+	static final int NUM_AFFINITIES = Affinity.values().length;
+	static final int FIELD_BITS = 12;
+	static final int VALUE_BITS = FIELD_BITS - 1;
+
+	// Largest value a field can hold
+	public static final int MAX_VALUE = (1 << VALUE_BITS) - 1;
+
+	// The lowest bit of every field, and the guard bit of every field
+	static final long FIELD_ONES;
+	static final long GUARDS;
+	static {
+		long ones = 0L;
+		for (int a = 0; a < NUM_AFFINITIES; a++) {
+			ones |= 1L << (a * FIELD_BITS);
+		}
+		FIELD_ONES = ones;
+		GUARDS = ones << VALUE_BITS;
+	}
+
+	private long packed;
+
 	public AffinityValues() {
-		affinityValues = new int[Affinity.values().length];
+		packed = 0L;
+	}
+
+	/**
+	 * @param packed: values as returned by packed()
+	 */
+	AffinityValues(long packed) {
+		this.packed = packed;
 	}
-	
+
 	public String toString() {
-		return Arrays.toString(affinityValues);
+		int[] values = new int[NUM_AFFINITIES];
+		for (int a = 0; a < NUM_AFFINITIES; a++) {
+			values[a] = field(packed, a);
+		}
+		return Arrays.toString(values);
 	}
-	
+
+	/**
+	 * @throws IllegalArgumentException if v is negative or over MAX_VALUE
+	 */
 	public void setValue(Affinity a, int v) {
-		affinityValues[a.ordinal()] = v;
+		if (v < 0 || v > MAX_VALUE) {
+			throw new IllegalArgumentException(a + " value " + v + " is out of range");
+		}
+		int shift = a.ordinal() * FIELD_BITS;
+		packed = (packed & ~((long)MAX_VALUE << shift)) | ((long)v << shift);
 	}
-	
+
 	public int getValue(Affinity a) {
-		return affinityValues[a.ordinal()];
+		return field(packed, a.ordinal());
 	}
-	
+
+	/**
+	 * The packed values, for comparing and combining with the static methods.
+	 */
+	long packed() {
+		return packed;
+	}
+
 	public boolean fullfills(AffinityValues requirement) {
-		for(Affinity a : Affinity.values()) {
-			if(this.affinityValues[a.ordinal()] < requirement.affinityValues[a.ordinal()]) {
-				return false;
-			}
-		}
-		return true;
+		return fulfills(packed, requirement.packed);
 	}
-	
+
+	/**
+	 * @throws ArithmeticException if a value goes over MAX_VALUE
+	 */
 	public void add(AffinityValues other) {
-		for(Affinity a : Affinity.values()) {
-			this.affinityValues[a.ordinal()] += other.affinityValues[a.ordinal()];
-		}
+		packed = checked(packed + other.packed);
 	}
-	
+
+	/**
+	 * @throws ArithmeticException if a value goes below 0
+	 */
 	public void subtract(AffinityValues other) {
-		for(Affinity a : Affinity.values()) {
-			this.affinityValues[a.ordinal()] -= other.affinityValues[a.ordinal()];
-		}
+		packed = checked(packed - other.packed);
 	}
-	
+
 	public AffinityValues plus(AffinityValues other) {
-		AffinityValues rav = new AffinityValues();
-		rav.add(this);
-		rav.add(other);
-		return rav;
+		return new AffinityValues(checked(packed + other.packed));
 	}
-	
+
 	public AffinityValues minus(AffinityValues other) {
-		AffinityValues rav = new AffinityValues();
-		rav.add(this);
-		rav.subtract(other);
-		return rav;
+		return new AffinityValues(checked(packed - other.packed));
 	}
-	
+
 	public int total() {
 		int total = 0;
-		for (int i = 0; i < this.affinityValues.length; i++) {
-			total += this.affinityValues[i];
+		for (int a = 0; a < NUM_AFFINITIES; a++) {
+			total += field(packed, a);
 		}
 		return total;
 	}
+
+	/**
+	 * @return true if every value in have is at least the one in required
+	 */
+	static boolean fulfills(long have, long required) {
+		return (((have | GUARDS) - required) & GUARDS) == GUARDS;
+	}
+
+	/**
+	 * @return the larger of each pair of values in a and b
+	 */
+	static long max(long a, long b) {
+		// Guard bits left set where a >= b, spread into masks over those fields
+		long aAtLeastB = ((a | GUARDS) - b) & GUARDS;
+		long mask = (aAtLeastB >>> VALUE_BITS) * MAX_VALUE;
+		return (a & mask) | (b & ~mask);
+	}
+
+	/**
+	 * @return the sum of each pair of values in a and b, or MAX_VALUE where
+	 *  the sum is larger
+	 */
+	static long saturatedSum(long a, long b) {
+		long sum = a + b;
+		long over = ((sum & GUARDS) >>> VALUE_BITS) * MAX_VALUE;
+		return (sum | over) & ~GUARDS;
+	}
+
+	static int field(long packed, int a) {
+		return (int)(packed >>> (a * FIELD_BITS)) & MAX_VALUE;
+	}
+
+	/*
+	 * A value that went out of range on an addition or subtraction leaves
+	 * its guard bit set
+	 */
+	private static long checked(long packed) {
+		if ((packed & GUARDS) != 0) {
+			throw new ArithmeticException("Affinity value out of range");
+		}
+		return packed;
+	}
 }
@@ -0,0 +1,223 @@
+package gdbuildmaker;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Simulated annealing over builds, on one independent chain per thread. Each
+ * step adds, removes or swaps a constellation, keeping the build valid, and
+ * is accepted if it makes the finished build better, or otherwise with a
+ * probability that shrinks as the temperature cools. Every cycle the chain
+ * restarts from the empty build at the starting temperature.
+ */
+public class AnnealingSearch extends AbstractBuildSearch {
+	public static final long DEFAULT_CYCLE_ITERATIONS = 200_000L;
+	
+	// Over a cycle, the temperature cools to this fraction of the starting temperature
+	private static final double FINAL_TEMPERATURE_RATIO = 1e-3;
+	
+	private static final int ADD = 0;
+	private static final int REMOVE = 1;
+	private static final int SWAP = 2;
+	
+	/*
+	 * Starts one chain per thread
+	 */
+	private final class Chains extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final int numChains;
+		
+		private Chains(int numChains) {
+			this.numChains = numChains;
+		}
+		
+		protected void compute() {
+			Chain[] chains = new Chain[numChains];
+			for (int i = 0; i < numChains; i++) {
+				chains[i] = new Chain(seed + i);
+			}
+			invokeAll(chains);
+		}
+	}
+	
+	private final class Chain extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final Random random;
+		
+		// Build variables represent the state of the chain
+		private ConstellationSet build;
+		private int buildStars;
+		private double buildValue;
+		private AffinityValues buildAffinities;
+		private double finishedValue;
+		
+		private long[] available;
+		
+		private Chain(long seed) {
+			random = new Random(seed);
+		}
+		
+		protected void compute() {
+			build = new ConstellationSet(constellations);
+			available = new long[width];
+			
+			while (continueSearching) {
+				// Restart from the empty build
+				build.clear();
+				buildStars = 0;
+				buildValue = 0.0;
+				buildAffinities = new AffinityValues();
+				finishedValue = finish(build, buildStars, buildValue, buildAffinities);
+				
+				for (long i = 0; i < cycleIterations && continueSearching; i++) {
+					double temperature = startTemperature
+							* Math.pow(FINAL_TEMPERATURE_RATIO, (double)i / cycleIterations);
+					step(temperature);
+				}
+			}
+		}
+		
+		/**
+		 * Tries one random move, and keeps it or rolls it back.
+		 */
+		private void step(double temperature) {
+			int move = random.nextInt(3);
+			Constellation removed = null;
+			Constellation added = null;
+			
+			if (move != ADD && build.size() > 0) {
+				removed = randomMember();
+				toggle(removed);
+				// All constellation requirements must still be met
+				if (!requirementIndex.validAfterRemoving(
+						build.words(), buildAffinities, removed)) {
+					toggle(removed);
+					return;
+				}
+			}
+			if (move != REMOVE) {
+				added = randomAddition();
+				if (added != null) {
+					toggle(added);
+				}
+			}
+			if (removed == null && added == null) { return; }
+			
+			double value = finish(build, buildStars, buildValue, buildAffinities);
+			double change = value - finishedValue;
+			if (change >= 0 || random.nextDouble() < Math.exp(change / temperature)) {
+				finishedValue = value;
+			} else {
+				if (added != null) {
+					toggle(added);
+				}
+				if (removed != null) {
+					toggle(removed);
+				}
+			}
+		}
+		
+		private Constellation randomMember() {
+			int ordinal = build.nextOrdinal(0);
+			for (int skip = random.nextInt(build.size()); skip > 0; skip--) {
+				ordinal = build.nextOrdinal(ordinal + 1);
+			}
+			return constellations[ordinal];
+		}
+		
+		/**
+		 * @return a constellation chosen evenly among those that are
+		 *  available and fit under the star limit, or null if there are none
+		 */
+		private Constellation randomAddition() {
+			requirementIndex.available(buildAffinities, available);
+			long[] words = build.words();
+			
+			Constellation chosen = null;
+			int seen = 0;
+			for (int w = 0; w < width; w++) {
+				long candidates = available[w] & ~words[w];
+				while (candidates != 0) {
+					int ordinal = (w << 6) + Long.numberOfTrailingZeros(candidates);
+					candidates &= candidates - 1;
+					
+					Constellation c = constellations[ordinal];
+					if (buildStars + c.numStars() <= Controller.MAX_STARS
+							&& random.nextInt(++seen) == 0) {
+						chosen = c;
+					}
+				}
+			}
+			return chosen;
+		}
+		
+		/**
+		 * Adds the constellation to the build if it is not in it, otherwise
+		 *  removes it from the build.
+		 */
+		private void toggle(Constellation c) {
+			if (build.remove(c)) {
+				buildStars -= c.numStars();
+				buildValue -= cValues[c.getOrdinal()];
+				buildAffinities.subtract(c.getReward());
+			} else {
+				build.add(c);
+				buildStars += c.numStars();
+				buildValue += cValues[c.getOrdinal()];
+				buildAffinities.add(c.getReward());
+			}
+		}
+	}
+	
+	private final long cycleIterations;
+	private final double startTemperature;
+	private final long seed;
+	private int maxChains;
+	
+	public AnnealingSearch(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds) {
+		this(constellationValues, starValues, topBuilds,
+				DEFAULT_CYCLE_ITERATIONS, System.nanoTime());
+	}
+	
+	/**
+	 * @param cycleIterations: steps a chain takes between restarts
+	 * @param seed: seed for the chains' random moves
+	 */
+	public AnnealingSearch(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds,
+			long cycleIterations, long seed) {
+		super(constellationValues, starValues, topBuilds);
+		this.cycleIterations = cycleIterations;
+		this.seed = seed;
+		this.maxChains = Integer.MAX_VALUE;
+		
+		// Start hot enough to give up about one average constellation readily
+		double total = 0.0;
+		for (double value : cValues) {
+			total += Math.max(0.0, value);
+		}
+		startTemperature = numConstellations > 0 && total > 0.0
+				? total / numConstellations : 1.0;
+	}
+	
+	/**
+	 * Caps the number of chains, which is otherwise one per thread of the
+	 *  pool. Chains never end, so a search on a shared pool should leave
+	 *  threads to the other searches. Takes effect on the next start.
+	 */
+	public void setMaxChains(int maxChains) {
+		if (maxChains < 1) {
+			throw new IllegalArgumentException("Needs at least one chain");
+		}
+		this.maxChains = maxChains;
+	}
+	
+	protected ForkJoinTask<?> rootTask(int numThreads) {
+		return new Chains(Math.min(numThreads, maxChains));
+	}
+}
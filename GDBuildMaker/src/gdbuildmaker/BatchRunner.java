@@ -0,0 +1,331 @@
+package gdbuildmaker;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs searches from the command line, without the UI. The constellations
+ * are loaded once, then every effect weight profile in a directory (as saved
+ * from the values tab) is searched concurrently over them, and each profile's
+ * top builds are written to a file of the same name in the output directory.
+ *
+ * Usage: BatchRunner gameDir profileDir outputDir [options]
+ *   --seconds N    stop each profile's search after N seconds
+ *   --builds N     stop each profile's search after N builds
+ *   --strategy S   walk, beam, annealing or exact (default walk)
+ *   --threads N    threads per profile (default cores / parallel profiles)
+ *   --parallel N   profiles to search at once (default all of them)
+ *   --pruning      prune walks with branch-and-bound, needs --canonical
+ *   --canonical    enumerate walks in canonical order
+ *   --symmetric    walk interchangeable constellations in one order only
+ *   --shared-walk  walk once, scoring each build under every profile
+ *   --top N        top builds to keep and write per profile (default 100)
+ *   --spill DIR    spill walks' visited builds to segment files in DIR
+ *   --filter BYTES,FPR  record walks' visited builds approximately, in a
+ *                  Bloom filter of BYTES with false positive rate FPR at
+ *                  capacity; takes precedence over --spill
+ *   --checkpoint FILE         checkpoint walks to FILE, resuming from it if
+ *                             it exists; profiles walked separately each get
+ *                             their own file, named FILE-profile
+ *   --checkpoint-interval S   seconds between checkpoints (default 300)
+ *
+ * Without a budget each search runs until it finishes.
+ */
+public class BatchRunner {
+	private static final long POLL_MILLIS = 100;
+	private static final long DEFAULT_CHECKPOINT_MILLIS = 5 * 60 * 1000;
+
+	private final List<Constellation> constellations;
+	private final File outputDir;
+
+	private BuildSearch.Strategy strategy = BuildSearch.Strategy.WALK;
+	private long maxMillis = Long.MAX_VALUE;
+	private long maxBuilds = Long.MAX_VALUE;
+	private int threads = 0;
+	private int parallel = 0;
+	private boolean pruning = false;
+	private boolean canonical = false;
+	private boolean symmetric = false;
+	private boolean sharedWalk = false;
+	private int topBuilds = TopBuilds.DEFAULT_SIZE;
+	private File spillDirectory;
+	private long filterBytes = 0;
+	private double filterFalsePositiveRate;
+	private File checkpoint;
+	private long checkpointMillis = DEFAULT_CHECKPOINT_MILLIS;
+
+	/*
+	 * Searches one or more profiles in one run and writes their top builds
+	 */
+	private class ProfileRun implements Runnable {
+		private final List<File> profiles;
+		private final int threads;
+		private final File checkpoint;
+
+		private ProfileRun(List<File> profiles, int threads, File checkpoint) {
+			this.profiles = profiles;
+			this.threads = threads;
+			this.checkpoint = checkpoint;
+		}
+
+		public void run() {
+			String name = profiles.size() == 1 ? profiles.get(0).getName() : "Shared walk";
+			try {
+				List<Map<String, Double>> weights = new ArrayList<Map<String, Double>>();
+				for (File profile : profiles) {
+					weights.add(EffectWeights.read(profile));
+				}
+
+				Controller controller = new Controller(constellations);
+				controller.setStrategy(strategy);
+				controller.setThreads(threads);
+				controller.setPruning(pruning);
+				controller.setCanonical(canonical);
+				controller.setSymmetric(symmetric);
+				controller.setTopBuildsSize(topBuilds);
+				controller.setSpillDirectory(spillDirectory);
+				controller.setVisitedFilter(filterBytes, filterFalsePositiveRate);
+				controller.setCheckpoint(checkpoint, checkpointMillis);
+
+				long startTime = System.currentTimeMillis();
+				if (checkpoint != null && checkpoint.isFile()) {
+					System.out.println(name + ": resuming " + checkpoint);
+					controller.resumeFrom(checkpoint);
+				} else {
+					controller.start(weights);
+				}
+				while (!controller.isFinished()
+						&& System.currentTimeMillis() - startTime < maxMillis
+						&& controller.getBuildsVisited() < maxBuilds) {
+					Thread.sleep(POLL_MILLIS);
+				}
+				controller.stop();
+				long elapsed = System.currentTimeMillis() - startTime;
+
+				for (int k = 0; k < profiles.size(); k++) {
+					writeResults(profiles.get(k), controller.getTopBuilds(k),
+							controller, elapsed);
+				}
+				System.out.println(String.format("%s: %d builds in %.1fs%s%s",
+						name, controller.getBuildsVisited(), elapsed / 1000.0,
+						visitedStore(controller),
+						controller.isFinished() ? ", finished" : ""));
+			} catch (IOException e) {
+				System.err.println(name + ": " + e.getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public BatchRunner(List<Constellation> constellations, File outputDir) {
+		this.constellations = constellations;
+		this.outputDir = outputDir;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: BatchRunner gameDir profileDir outputDir"
+					+ " [--seconds N] [--builds N] [--strategy walk|beam|annealing|exact]"
+					+ " [--threads N] [--parallel N] [--pruning] [--canonical]"
+					+ " [--symmetric] [--shared-walk] [--top N] [--spill DIR]"
+					+ " [--filter BYTES,FPR]"
+					+ " [--checkpoint FILE] [--checkpoint-interval S]");
+			System.exit(2);
+		}
+
+		ConstellationLoader loader = new ConstellationLoader();
+		List<Constellation> constellations = loader.loadConstellations(args[0]);
+		for (String error : loader.getErrors()) {
+			System.err.println(error);
+		}
+		if (constellations.isEmpty()) {
+			System.err.println("No constellations found in " + args[0]);
+			System.exit(1);
+		}
+
+		BatchRunner runner = new BatchRunner(constellations, new File(args[2]));
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+			case "--seconds":
+				runner.maxMillis = (long)(Double.parseDouble(args[++i]) * 1000);
+				break;
+			case "--builds":
+				runner.maxBuilds = Long.parseLong(args[++i]);
+				break;
+			case "--strategy":
+				runner.strategy = BuildSearch.Strategy.valueOf(args[++i].toUpperCase());
+				break;
+			case "--threads":
+				runner.threads = Integer.parseInt(args[++i]);
+				break;
+			case "--parallel":
+				runner.parallel = Integer.parseInt(args[++i]);
+				break;
+			case "--pruning":
+				runner.pruning = true;
+				break;
+			case "--canonical":
+				runner.canonical = true;
+				break;
+			case "--symmetric":
+				runner.symmetric = true;
+				break;
+			case "--shared-walk":
+				runner.sharedWalk = true;
+				break;
+			case "--top":
+				runner.topBuilds = Integer.parseInt(args[++i]);
+				break;
+			case "--spill":
+				runner.spillDirectory = new File(args[++i]);
+				break;
+			case "--filter":
+				String[] filter = args[++i].split(",");
+				if (filter.length != 2) {
+					System.err.println("--filter takes BYTES,FPR");
+					System.exit(2);
+				}
+				runner.filterBytes = Long.parseLong(filter[0]);
+				runner.filterFalsePositiveRate = Double.parseDouble(filter[1]);
+				if (runner.filterBytes <= 0 || !(runner.filterFalsePositiveRate > 0
+						&& runner.filterFalsePositiveRate < 1)) {
+					System.err.println("--filter needs positive BYTES and an FPR between 0 and 1");
+					System.exit(2);
+				}
+				break;
+			case "--checkpoint":
+				runner.checkpoint = new File(args[++i]);
+				break;
+			case "--checkpoint-interval":
+				runner.checkpointMillis = (long)(Double.parseDouble(args[++i]) * 1000);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+		if (runner.pruning && !runner.canonical && runner.strategy == BuildSearch.Strategy.WALK) {
+			System.err.println("--pruning needs --canonical");
+			System.exit(2);
+		}
+		if (runner.checkpoint != null && runner.strategy != BuildSearch.Strategy.WALK) {
+			System.err.println("Only walks can be checkpointed");
+			System.exit(2);
+		}
+		if (runner.checkpointMillis <= 0) {
+			System.err.println("--checkpoint-interval must be positive");
+			System.exit(2);
+		}
+
+		runner.runAll(new File(args[1]));
+	}
+
+	/**
+	 * Searches every .csv profile in profileDir, returning once all of them
+	 *  have been written.
+	 */
+	public void runAll(File profileDir) throws IOException, InterruptedException {
+		File[] profiles = profileDir.listFiles(new FileFilter() {
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().toLowerCase().endsWith(".csv");
+			}
+		});
+		if (profiles == null || profiles.length == 0) {
+			throw new IOException("No .csv profiles in " + profileDir);
+		}
+		Arrays.sort(profiles);
+
+		if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+			throw new IOException("Can't create " + outputDir);
+		}
+		if (spillDirectory != null && !spillDirectory.isDirectory() && !spillDirectory.mkdirs()) {
+			throw new IOException("Can't create " + spillDirectory);
+		}
+
+		if (sharedWalk) {
+			if (strategy != BuildSearch.Strategy.WALK) {
+				throw new IllegalArgumentException("Only walks can be shared between profiles");
+			}
+			int numThreads = threads > 0 ? threads : Controller.BUILDWALKER_THREADS;
+			new ProfileRun(Arrays.asList(profiles), numThreads, checkpoint).run();
+			return;
+		}
+
+		int numParallel = parallel > 0 ? Math.min(parallel, profiles.length) : profiles.length;
+		int numThreads = threads > 0 ? threads
+				: Math.max(1, Controller.BUILDWALKER_THREADS / numParallel);
+
+		ExecutorService executor = Executors.newFixedThreadPool(numParallel);
+		List<Future<?>> runs = new ArrayList<Future<?>>();
+		for (File profile : profiles) {
+			File profileCheckpoint = checkpoint;
+			if (checkpoint != null && profiles.length > 1) {
+				profileCheckpoint = new File(checkpoint.getPath() + "-" + baseName(profile));
+			}
+			runs.add(executor.submit(new ProfileRun(Arrays.asList(profile),
+					numThreads, profileCheckpoint)));
+		}
+		executor.shutdown();
+
+		for (Future<?> run : runs) {
+			try {
+				run.get();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+	}
+
+	private void writeResults(File profile, List<Build> topBuilds, Controller controller,
+			long elapsedMillis) throws IOException {
+		String name = baseName(profile);
+
+		try (PrintWriter writer = new PrintWriter(new File(outputDir, name + ".txt"))) {
+			writer.println("# Profile: " + profile.getName());
+			writer.println("# Strategy: " + strategy);
+			writer.println(String.format("# Builds: %d in %.1fs%s%s",
+					controller.getBuildsVisited(), elapsedMillis / 1000.0,
+					visitedStore(controller),
+					controller.isFinished() ? ", finished" : ""));
+			for (Build build : topBuilds) {
+				if (build.getValue() > 0) {
+					writer.println(build);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Describes where a walk's visited builds are kept, for the summaries
+	 */
+	private static String visitedStore(Controller controller) {
+		if (controller.isVisitedFilterMode()) {
+			return String.format(", visited filter capacity %d, fill %.1f%%,"
+					+ " false positives %.4f%%",
+					controller.getVisitedFilterCapacity(),
+					100 * controller.getVisitedFilterFillRatio(),
+					100 * controller.getVisitedFilterFalsePositiveRate());
+		}
+		if (controller.isSpillingMode()) {
+			return String.format(", %d MB visited on disk",
+					controller.getVisitedBytesOnDisk() / (1024 * 1024));
+		}
+		return "";
+	}
+
+	private static String baseName(File profile) {
+		String name = profile.getName();
+		return name.substring(0, name.length() - ".csv".length());
+	}
+}
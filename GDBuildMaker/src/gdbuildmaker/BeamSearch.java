@@ -0,0 +1,165 @@
+package gdbuildmaker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builds up from the empty build one constellation at a time, keeping only
+ * the beamWidth best builds of each size, ranked by their value once finished
+ * with partial constellations. Each pass is repeated with twice the width,
+ * up to maxBeamWidth, so good builds come early and later passes look wider.
+ */
+public class BeamSearch extends AbstractBuildSearch {
+	public static final int DEFAULT_BEAM_WIDTH = 64;
+	public static final int DEFAULT_MAX_BEAM_WIDTH = 1 << 16;
+	
+	// Beam builds expanded by a single task
+	private static final int EXPAND_CHUNK = 16;
+	
+	/*
+	 * A build in the beam
+	 */
+	private static final class Node {
+		private final long[] words;
+		private final int stars;
+		private final double value;
+		private final AffinityValues affinities;
+		private final double score;
+		
+		private Node(long[] words, int stars, double value,
+				AffinityValues affinities, double score) {
+			this.words = words;
+			this.stars = stars;
+			this.value = value;
+			this.affinities = affinities;
+			this.score = score;
+		}
+	}
+	
+	private static final Comparator<Node> HIGHEST_SCORE_FIRST = new Comparator<Node>() {
+		public int compare(Node n1, Node n2) {
+			return Double.compare(n2.score, n1.score);
+		}
+	};
+	
+	/*
+	 * Runs passes of widening beams until the widest is done
+	 */
+	private final class Passes extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		protected void compute() {
+			for (int beamWidth = initialWidth; continueSearching; beamWidth *= 2) {
+				List<Node> beam = new ArrayList<Node>();
+				beam.add(new Node(new long[width], 0, 0.0, new AffinityValues(), 0.0));
+				
+				while (!beam.isEmpty() && continueSearching) {
+					VisitedBuildSet seen = new VisitedBuildSet(width);
+					List<Node> next = new Expand(beam, 0, beam.size(), seen).invoke();
+					
+					Collections.sort(next, HIGHEST_SCORE_FIRST);
+					beam = next.size() > beamWidth
+							? new ArrayList<Node>(next.subList(0, beamWidth))
+							: next;
+				}
+				
+				// Stop after the widest pass, before the width can overflow
+				if (beamWidth > maxWidth / 2) { break; }
+			}
+		}
+	}
+	
+	/*
+	 * Finishes every build one constellation larger than the beam builds from
+	 * start to end
+	 */
+	private final class Expand extends RecursiveTask<List<Node>> {
+		private static final long serialVersionUID = 1L;
+		
+		private final List<Node> beam;
+		private final int start;
+		private final int end;
+		private final VisitedBuildSet seen;
+		
+		private Expand(List<Node> beam, int start, int end, VisitedBuildSet seen) {
+			this.beam = beam;
+			this.start = start;
+			this.end = end;
+			this.seen = seen;
+		}
+		
+		protected List<Node> compute() {
+			if (end - start > EXPAND_CHUNK) {
+				int mid = (start + end) >>> 1;
+				Expand left = new Expand(beam, start, mid, seen);
+				left.fork();
+				List<Node> nodes = new Expand(beam, mid, end, seen).compute();
+				nodes.addAll(left.join());
+				return nodes;
+			}
+			
+			List<Node> nodes = new ArrayList<Node>();
+			ConstellationSet build = new ConstellationSet(constellations);
+			long[] available = new long[width];
+			
+			for (int i = start; i < end && continueSearching; i++) {
+				Node parent = beam.get(i);
+				build.setWords(parent.words);
+				requirementIndex.available(parent.affinities, available);
+				
+				for (int w = 0; w < width; w++) {
+					long candidates = available[w] & ~parent.words[w];
+					while (candidates != 0) {
+						int ordinal = (w << 6) + Long.numberOfTrailingZeros(candidates);
+						candidates &= candidates - 1;
+						
+						Constellation c = constellations[ordinal];
+						int stars = parent.stars + c.numStars();
+						if (stars > Controller.MAX_STARS) { continue; }
+						
+						build.add(c);
+						if (seen.add(build.words())) {
+							double value = parent.value + cValues[ordinal];
+							AffinityValues affinities = parent.affinities.plus(c.getReward());
+							double score = finish(build, stars, value, affinities);
+							nodes.add(new Node(build.words().clone(), stars, value, affinities, score));
+						}
+						build.remove(c);
+					}
+				}
+			}
+			return nodes;
+		}
+	}
+	
+	private final int initialWidth;
+	private final int maxWidth;
+	
+	public BeamSearch(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds) {
+		this(constellationValues, starValues, topBuilds,
+				DEFAULT_BEAM_WIDTH, DEFAULT_MAX_BEAM_WIDTH);
+	}
+	
+	/**
+	 * @param beamWidth: builds kept of each size in the first pass
+	 * @param maxBeamWidth: builds kept of each size in the last pass
+	 */
+	public BeamSearch(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds,
+			int beamWidth, int maxBeamWidth) {
+		super(constellationValues, starValues, topBuilds);
+		this.initialWidth = beamWidth;
+		this.maxWidth = Math.max(beamWidth, maxBeamWidth);
+	}
+	
+	protected ForkJoinTask<?> rootTask(int numThreads) {
+		return new Passes();
+	}
+}
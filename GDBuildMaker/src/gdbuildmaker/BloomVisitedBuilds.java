@@ -0,0 +1,154 @@
+package gdbuildmaker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Approximate record of visited builds, kept in a Bloom filter of fixed size.
+ * A false positive makes the walker treat an unvisited build as visited and
+ * skip it, which is acceptable for heuristic searches in exchange for memory
+ * that does not grow with the length of the run. Two threads adding the same
+ * build at once may both be told it is new.
+ */
+public class BloomVisitedBuilds implements VisitedBuilds {
+	private final int width;
+	private final long numBits;
+	private final int numHashes;
+	private final long capacity;
+	private final AtomicLongArray bits;
+	
+	private final LongAdder size;
+	private final LongAdder bitsSet;
+	
+	/**
+	 * Sizes the filter to use memoryBytes of heap, holding as many builds as
+	 *  it can before the false positive rate reaches falsePositiveRate.
+	 * 
+	 * @param width: number of long words in each build
+	 * @param memoryBytes: heap to use for the filter's bits
+	 * @param falsePositiveRate: target false positive rate once the filter is at capacity
+	 */
+	public BloomVisitedBuilds(int width, long memoryBytes, double falsePositiveRate) {
+		if (falsePositiveRate <= 0.0 || falsePositiveRate >= 1.0) {
+			throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+		}
+		
+		this.width = width;
+		
+		long numWords = Math.max(1L, Math.min(memoryBytes / 8, Integer.MAX_VALUE - 8));
+		numBits = numWords * 64;
+		
+		// Optimal number of items for m bits at rate p is m * ln(2)^2 / -ln(p)
+		double ln2 = Math.log(2);
+		capacity = Math.max(1L, (long)(numBits * ln2 * ln2 / -Math.log(falsePositiveRate)));
+		numHashes = Math.max(1, (int)Math.round((double)numBits / capacity * ln2));
+		
+		bits = new AtomicLongArray((int)numWords);
+		size = new LongAdder();
+		bitsSet = new LongAdder();
+	}
+	
+	public boolean add(long[] build) {
+		long h1 = mix(build, 0x9E3779B97F4A7C15L);
+		long h2 = mix(build, 0xC2B2AE3D27D4EB4FL) | 1L;
+		
+		boolean added = false;
+		for (int i = 0; i < numHashes; i++) {
+			long bit = Long.remainderUnsigned(h1 + i * h2, numBits);
+			if (setBit(bit)) {
+				added = true;
+			}
+		}
+		
+		if (added) {
+			size.increment();
+		}
+		return added;
+	}
+	
+	/**
+	 * Number of builds reported as new. False positives are not counted.
+	 */
+	public long size() {
+		return size.sum();
+	}
+	
+	/**
+	 * Writes the filter's bits. A filter restored by readFrom() must have
+	 *  been created with the same width, memory and false positive rate.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeLong(numBits);
+		out.writeInt(numHashes);
+		out.writeLong(size.sum());
+		out.writeLong(bitsSet.sum());
+		for (int i = 0; i < bits.length(); i++) {
+			out.writeLong(bits.get(i));
+		}
+	}
+	
+	public void readFrom(DataInputStream in) throws IOException {
+		if (in.readLong() != numBits || in.readInt() != numHashes) {
+			throw new IOException("Visited builds filter has a different size");
+		}
+		size.add(in.readLong());
+		in.readLong(); // bits set are recounted, in case this filter is not empty
+		for (int i = 0; i < bits.length(); i++) {
+			long word = bits.get(i);
+			long merged = word | in.readLong();
+			bits.set(i, merged);
+			bitsSet.add(Long.bitCount(merged) - Long.bitCount(word));
+		}
+	}
+	
+	/**
+	 * Number of builds the filter was sized to hold at its target false
+	 *  positive rate.
+	 */
+	public long capacity() {
+		return capacity;
+	}
+	
+	/**
+	 * Fraction of the filter's bits that are set.
+	 */
+	public double fillRatio() {
+		return (double)bitsSet.sum() / numBits;
+	}
+	
+	/**
+	 * Current chance that an unvisited build is reported as visited.
+	 */
+	public double falsePositiveRate() {
+		return Math.pow(fillRatio(), numHashes);
+	}
+	
+	/**
+	 * @return true if the bit was not already set
+	 */
+	private boolean setBit(long bit) {
+		int index = (int)(bit >>> 6);
+		long mask = 1L << bit;
+		long word;
+		do {
+			word = bits.get(index);
+			if ((word & mask) != 0) { return false; }
+		} while (!bits.compareAndSet(index, word, word | mask));
+		
+		bitsSet.increment();
+		return true;
+	}
+	
+	private long mix(long[] build, long seed) {
+		long h = seed;
+		for (int i = 0; i < width; i++) {
+			h = (h ^ build[i]) * 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		h *= 0x94D049BB133111EBL;
+		return h ^ (h >>> 29);
+	}
+}
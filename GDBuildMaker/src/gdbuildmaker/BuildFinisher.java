@@ -1,260 +1,265 @@
 package gdbuildmaker;
 
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Finishes a build by spending its unspent stars on partial constellations.
+ * Each constellation that is available to the build but not in it has a
+ * curve of the best value of k of its stars, and the stars are shared out
+ * between the curves with a multi-choice knapsack, so the finished build is
+ * the best one that keeps the build's whole constellations.
+ *
+ * The knapsack is kept between calls as one layer per constellation, in a
+ * fixed order. Consecutive builds of a walk differ by one constellation,
+ * which changes whether a few constellations are candidates, so only the
+ * layers from the first changed one on are recomputed. A finisher is not
+ * safe to share between threads.
+ *
+ * The result of a call is kept in the finisher until the next one, as the
+ * number of stars given to each constellation by ordinal, so finishing a
+ * build allocates nothing.
+ */
 public class BuildFinisher {
 	public static class Builder {
 		/*
 		 * Data is shared between instances of BuildFinisher created from the same builder
 		 */
 		
-		private final Map<Pair<Star, Integer>, PartialConstellation> cachedPartialConstellations;
+		/*
+		 * The constellations with stars that add value, in knapsack layer
+		 * order, and curves[i][k], the best value of k stars of the i-th.
+		 * Layers go in order of increasing total requirement: adding a
+		 * constellation mostly makes constellations with higher requirements
+		 * available, so the layers before them stay valid.
+		 */
+		private final Constellation[] layerConstellations;
+		private final double[][] curves;
 		
-		private final List<Constellation> constellations;
-		private final Map<Star, Double> starValues;
+		// maxValues[b] is the best value of b stars with every constellation a candidate
+		private final double[] maxValues;
 		
-		public Builder(List<Constellation> constellations, Map<Star, Double> starValues) {
-			this.constellations = constellations;
-			this.starValues = starValues;
+		private final RequirementIndex requirementIndex;
+		private final int numConstellations;
+		
+		public Builder(List<Constellation> constellations, RequirementIndex requirementIndex,
+				Map<Star, Double> starValues) {
+			this.requirementIndex = requirementIndex;
+			this.numConstellations = constellations.size();
+			
+			double[] values = StarTreeValues.valuesByOrdinal(constellations, starValues);
+			List<Constellation> valued = new ArrayList<Constellation>();
+			List<double[]> valuedCurves = new ArrayList<double[]>();
+			List<Constellation> byRequirement = new ArrayList<Constellation>(constellations);
+			Collections.sort(byRequirement, new Comparator<Constellation>() {
+				public int compare(Constellation c1, Constellation c2) {
+					int diff = c1.getRequirement().total() - c2.getRequirement().total();
+					return diff != 0 ? diff : c1.getOrdinal() - c2.getOrdinal();
+				}
+			});
+			for (Constellation c : byRequirement) {
+				double[] curve = curve(c, values);
+				for (int k = 1; k < curve.length; k++) {
+					if (curve[k] > 0.0) {
+						valued.add(c);
+						valuedCurves.add(curve);
+						break;
+					}
+				}
+			}
+			layerConstellations = valued.toArray(new Constellation[valued.size()]);
+			curves = valuedCurves.toArray(new double[valuedCurves.size()][]);
 			
-			cachedPartialConstellations =
-					new ConcurrentHashMap<Pair<Star, Integer>, PartialConstellation>();
+			maxValues = new double[Controller.MAX_STARS + 1];
+			for (double[] curve : curves) {
+				for (int b = Controller.MAX_STARS; b > 0; b--) {
+					int maxStars = Math.min(b, curve.length - 1);
+					for (int k = 1; k <= maxStars; k++) {
+						maxValues[b] = Math.max(maxValues[b], maxValues[b - k] + curve[k]);
+					}
+				}
+			}
 		}
 		
 		public BuildFinisher build() {
 			return new BuildFinisher(this);
 		}
-	}
-	
-	public class PartialBuild {
-		private final Double value;
-		private final Map<Constellation, Integer> partials;
 		
-		private PartialBuild(Double v, Map<Constellation, Integer> ps) {
-			value = v;
-			partials = Collections.unmodifiableMap(ps);
-		}
-		
-		public Double getValue() {
-			return value;
+		/**
+		 * @return the most value a finisher can add with the given number of
+		 *  unspent stars, whatever the build: the value it would add if every
+		 *  constellation were available and none were in the build
+		 */
+		public double maxPartialValue(int freeStars) {
+			return maxValues[Math.max(0, Math.min(freeStars, Controller.MAX_STARS))];
 		}
 		
-		public Map<Constellation, Integer> getPartials() {
-			return partials;
+		/*
+		 * The best value of k connected stars from the head star, for k from 0
+		 * to the constellation's size, negative infinity where there are none
+		 */
+		private static double[] curve(Constellation c, double[] starValues) {
+			double[] best = new StarTreeValues(c, starValues).bestValues(c.headStar());
+			double[] curve = Arrays.copyOf(best, c.numStars() + 1);
+			Arrays.fill(curve, Math.min(best.length, curve.length), curve.length,
+					Double.NEGATIVE_INFINITY);
+			return curve;
 		}
 	}
 	
-	private final class PartialConstellation {
-		private final Constellation constellation;
-		private final Star headStar;
-		private final Collection<Star> newHeads;
-		private final int starsUsed;
-		private final double avgValue;
-		
-		private PartialConstellation(Constellation constellation, Star headStar,
-				Collection<Star> newHeads, int starsUsed, double avgValue) {
-			this.constellation = constellation;
-			this.headStar = headStar;
-			this.newHeads = newHeads;
-			this.starsUsed = starsUsed;
-			this.avgValue = avgValue;
-		}
-	}
+	private final Constellation[] layerConstellations;
+	private final double[][] curves;
+	private final RequirementIndex requirementIndex;
 	
-	private final List<Constellation> constellations;
-	private final Map<Star, Double> starValues;
+	// Constellations that could be partially completed, for use in bestPartialBuild()
+	private final long[] candidates;
 	
-	// Cached values for bestPartialConstellation()
-	private final Map<Pair<Star, Integer>, PartialConstellation> cachedPartialConstellations;
+	/*
+	 * Knapsack layers, kept between calls. Layer i + 1 holds, from index
+	 * i * (MAX_STARS + 1) of layers, the best value of at most b stars from
+	 * the first i + 1 layer constellations that were candidates, and
+	 * choices[i * (MAX_STARS + 1) + b] is the number of stars the (i + 1)-th
+	 * gets in that solution. Layer 0 is all zeros. layerCandidate[i] records
+	 * whether the i-th was a candidate when its layer was computed, and the
+	 * first validLayers layers after layer 0 match the last build.
+	 */
+	private final double[] layers;
+	private final int[] choices;
+	private final boolean[] layerCandidate;
+	private int validLayers;
 	
-	// Best average sub-constellations, for use in bestParialBuild()
-	private List<PartialConstellation> partialConstellations;
+	/*
+	 * The last result: partialStars[ordinal] is the number of stars given to
+	 * the constellation, and the first numPartials of partialLayers are the
+	 * layers of the constellations given any
+	 */
+	private final int[] partialStars;
+	private final int[] partialLayers;
+	private int numPartials;
 	
 	private BuildFinisher(Builder builder) {
-		this.constellations = builder.constellations;
-		this.starValues = builder.starValues;
-		this.cachedPartialConstellations = builder.cachedPartialConstellations;
+		this.layerConstellations = builder.layerConstellations;
+		this.curves = builder.curves;
+		this.requirementIndex = builder.requirementIndex;
+		
+		int numLayers = layerConstellations.length;
+		candidates = new long[requirementIndex.width()];
+		layers = new double[(numLayers + 1) * (Controller.MAX_STARS + 1)];
+		choices = new int[numLayers * (Controller.MAX_STARS + 1)];
+		layerCandidate = new boolean[numLayers];
+		validLayers = 0;
 		
-		partialConstellations = new ArrayList<PartialConstellation>();
+		partialStars = new int[builder.numConstellations];
+		partialLayers = new int[numLayers];
+		numPartials = 0;
 	}
 	
-	public PartialBuild bestPartialBuild(Collection<Constellation> build,
-			int buildStars, AffinityValues buildAffinites) {
+	/**
+	 * Finds the best partial constellations for the build's unspent stars.
+	 *  The stars given to each are read with getPartialStars() or getPartials().
+	 * 
+	 * @return the value the partial constellations add to the build
+	 */
+	public double finish(ConstellationSet build, int buildStars, AffinityValues buildAffinites) {
+		for (int p = 0; p < numPartials; p++) {
+			partialStars[layerConstellations[partialLayers[p]].getOrdinal()] = 0;
+		}
+		numPartials = 0;
 		
 		int freeStars = Controller.MAX_STARS - buildStars;
 		
 		// If no stars are left to pick, best build has value 0 and no stars
 		if (freeStars <= 0) {
-			return new PartialBuild(0.0, new HashMap<Constellation, Integer>());
+			return 0.0;
 		}
-
-		// Get ready for a new run
-		Double totalValue = 0.0;
-		Map<Constellation, Integer> constellationStars = new HashMap<Constellation, Integer>();
-		partialConstellations.clear();
 		
-		// Make the initial working list of best partials
-		for (Constellation c : constellations) {
-			// If the constellation is available and has not been selected in the build
-			if (c.isAvailableWith(buildAffinites) && !(build.contains(c))) {
-				partialConstellations.add(bestPartialConstellation(c, c.headStar(), freeStars));
-			}
+		// Find the constellations that are available and have not been selected in the build
+		requirementIndex.available(buildAffinites, candidates);
+		long[] buildWords = build.words();
+		for (int w = 0; w < candidates.length; w++) {
+			candidates[w] &= ~buildWords[w];
 		}
 		
-		if (partialConstellations.size() <= 0 ) {
-			return new PartialBuild(0.0, new HashMap<Constellation, Integer>());
+		// Layers stay valid up to the first constellation whose candidacy changed
+		int numLayers = layerConstellations.length;
+		int first = 0;
+		while (first < validLayers && isCandidate(first) == layerCandidate[first]) {
+			first++;
 		}
 		
-		while (freeStars > 0 && partialConstellations.size() > 0) {
-			PartialConstellation bestPC = partialConstellations.get(0);
-			for (int i = 0; i < partialConstellations.size(); i++) {
-				// Make sure the partials all fit within the star allowance
-				PartialConstellation pc = partialConstellations.get(i); 
-				if (pc.starsUsed > freeStars) {
-					partialConstellations.set(i,
-							bestPartialConstellation(
-									pc.constellation,
-									pc.headStar,
-									freeStars));
-				}
-				// Find the partial with the best average
-				if (partialConstellations.get(i).avgValue > bestPC.avgValue) {
-					bestPC = partialConstellations.get(i);
-				}
+		// Give each candidate in turn the number of stars that does best with
+		// the candidates before it, for every number of stars
+		int width = Controller.MAX_STARS + 1;
+		for (int i = first; i < numLayers; i++) {
+			int from = i * width;
+			int to = from + width;
+			layerCandidate[i] = isCandidate(i);
+			if (!layerCandidate[i]) {
+				System.arraycopy(layers, from, layers, to, width);
+				continue;
 			}
-			// If there is no value left in the partials, just stop
-			if (bestPC.avgValue <= 0) { break; }
-
-			// Remove the best partial constellation from the list
-			partialConstellations.remove(bestPC);
-			
-			// Add the stars used to the constellation's star total
-			Integer count = constellationStars.get(bestPC.constellation);
-			constellationStars.put(
-					bestPC.constellation,
-					bestPC.starsUsed + (count == null ? 0 : count));
 			
-			// Keep track of total value obtained and free stars left to use
-			totalValue += bestPC.avgValue * bestPC.starsUsed;
-			freeStars -= bestPC.starsUsed;
-			
-			// Add unused sub-constellations back into the partial constellation list
-			if (freeStars > 0) {
-				for (Star star : bestPC.newHeads) {
-					partialConstellations.add(
-							bestPartialConstellation(bestPC.constellation, star, freeStars));
+			double[] curve = curves[i];
+			for (int b = 0; b < width; b++) {
+				double bestValue = layers[from + b];
+				int bestStars = 0;
+				int maxStars = Math.min(b, curve.length - 1);
+				for (int k = 1; k <= maxStars; k++) {
+					double value = layers[from + b - k] + curve[k];
+					if (value > bestValue) {
+						bestValue = value;
+						bestStars = k;
+					}
 				}
+				layers[to + b] = bestValue;
+				choices[from + b] = bestStars;
 			}
 		}
+		validLayers = numLayers;
 		
-		return new PartialBuild(totalValue, constellationStars);
-	}
-	
-	public PartialConstellation bestPartialConstellation(
-			Constellation constellation,
-			Star startingStar,
-			int allowedStars) {
-		
-		int newAllowedStars =
-				allowedStars < constellation.numStars() ? allowedStars : constellation.numStars();
-		
-		Pair<Star, Integer> pair = Pair.of(startingStar, newAllowedStars);
-		
-		PartialConstellation pc;
-		if ((pc = cachedPartialConstellations.get(pair)) != null) {
-			return pc;
+		// Read back the stars given to each candidate
+		int stars = freeStars;
+		for (int i = numLayers - 1; i >= 0; i--) {
+			int k = layerCandidate[i] ? choices[i * width + stars] : 0;
+			if (k > 0) {
+				partialStars[layerConstellations[i].getOrdinal()] = k;
+				partialLayers[numPartials++] = i;
+				stars -= k;
+			}
 		}
 		
-		pc = bestPartialConstellation(
-				startingStar,
-				newAllowedStars,
-				0.0,
-				0);
-		
-		// Put the constellation into the PartialConstellation
-		pc = new PartialConstellation(
-				constellation,
-				pc.headStar,
-				pc.newHeads,
-				pc.starsUsed,
-				pc.avgValue);
-		
-		cachedPartialConstellations.put(pair, pc);
-		return pc;
+		return layers[numLayers * width + freeStars];
 	}
 	
-	private PartialConstellation bestPartialConstellation(
-			Star headStar, int allowedStars, double runningAvg, int prevStars) {
-		
-		if (allowedStars == 1) {
-			return new PartialConstellation(
-					null, headStar, headStar.getChildren(), 1, starValues.get(headStar));
-		}
-		
-		Double stepAvg = runningAverage(runningAvg, prevStars, starValues.get(headStar), 1);
-		
-		List<PartialConstellation> subResults = new ArrayList<PartialConstellation>();
-		List<Star> newHeads = new ArrayList<Star>();
-		int starsUsed = 1;
-		for (Star child : headStar.getChildren()) {
-			PartialConstellation subResult = 
-					bestPartialConstellation(child, allowedStars-1, stepAvg, prevStars+1);
-			
-			if (subResult.avgValue >= stepAvg) {
-				subResults.add(subResult);
-				starsUsed += subResult.starsUsed;
-			} else {
-				newHeads.add(child);
-			}
-		}
-		
-		// Put the average of the best sub-tree (from this head star and on) in here
-		double bestAvg;
-		
-		// If it would use too many stars to include all sub-results
-		if (starsUsed > allowedStars) {
-			// TODO: make a better algorithm for this. Until then, just take the best sub-result
-			
-			// Pick the best sub-result, add the others' heads to the new heads list
-			PartialConstellation bestPC = null;
-			for (PartialConstellation pc : subResults) {
-				if (bestPC == null) {
-					bestPC = pc;
-				} else if (pc.avgValue > bestPC.avgValue) {
-					newHeads.add(bestPC.headStar);
-					bestPC = pc;
-				} else {
-					newHeads.add(pc.headStar);
-				}
-			}
-			newHeads.addAll(bestPC.newHeads);
-			
-			// Calculate the total average and count all stars used
-			bestAvg = runningAverage(starValues.get(headStar), 1, bestPC.avgValue, bestPC.starsUsed);
-			starsUsed = 1 + bestPC.starsUsed;
-		}
-		// If all sub-results can be included
-		else {
-			// Calculate the total average, gather all new heads
-			starsUsed = 1;
-			bestAvg = starValues.get(headStar);
-			for (PartialConstellation pc : subResults) {
-				bestAvg = runningAverage(bestAvg, starsUsed, pc.avgValue, pc.starsUsed);
-				starsUsed += pc.starsUsed;
-				newHeads.addAll(pc.newHeads);
-			}
+	/**
+	 * @return the number of stars the last finish() gave to each
+	 *  constellation, by ordinal. The array is reused by the next call and
+	 *  must not be modified.
+	 */
+	public int[] getPartialStars() {
+		return partialStars;
+	}
+	
+	/**
+	 * @return a new map of the constellations the last finish() gave stars
+	 *  to, and how many, for keeping with the build
+	 */
+	public Map<Constellation, Integer> getPartials() {
+		Map<Constellation, Integer> partials = new HashMap<Constellation, Integer>();
+		for (int p = 0; p < numPartials; p++) {
+			Constellation c = layerConstellations[partialLayers[p]];
+			partials.put(c, partialStars[c.getOrdinal()]);
 		}
-		
-		return new PartialConstellation(null, headStar, newHeads, starsUsed, bestAvg);
+		return partials;
 	}
 	
-	private static double runningAverage(double lAvg, int lCount, double rAvg, int rCount) {
-		return lAvg*lCount/(lCount+rCount) + rAvg/(lCount+rCount);
+	private boolean isCandidate(int layer) {
+		int ordinal = layerConstellations[layer].getOrdinal();
+		return (candidates[ordinal >>> 6] & (1L << ordinal)) != 0;
 	}
 }
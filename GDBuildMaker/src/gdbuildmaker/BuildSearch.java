@@ -0,0 +1,55 @@
+package gdbuildmaker;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A search for the best builds, run on a pool of threads and feeding its
+ * builds to a TopBuilds.
+ */
+public interface BuildSearch {
+	/**
+	 * The kinds of search a Controller can run.
+	 */
+	public enum Strategy {
+		WALK("Exhaustive walk"),
+		BEAM("Beam search"),
+		ANNEALING("Simulated annealing"),
+		EXACT("Exact solver");
+		
+		private final String description;
+		
+		private Strategy(String description) {
+			this.description = description;
+		}
+		
+		public String toString() {
+			return description;
+		}
+	}
+	
+	/**
+	 * Starts the search on a pool of its own with the given number of threads.
+	 */
+	public void start(int numThreads);
+	
+	/**
+	 * Starts the search on a pool that may be shared with other searches. The
+	 *  pool is left running when the search is stopped.
+	 */
+	public void start(ForkJoinPool pool);
+	
+	/**
+	 * Signals the search to stop, and waits for its tasks to finish.
+	 */
+	public void stop();
+	
+	/**
+	 * @return true once the search has nothing left to do
+	 */
+	public boolean isFinished();
+	
+	/**
+	 * Number of builds the search has evaluated so far.
+	 */
+	public long getIterations();
+}
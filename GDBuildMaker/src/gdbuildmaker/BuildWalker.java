@@ -1,227 +1,769 @@
 package gdbuildmaker;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.Stack;
-import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
 
-public class BuildWalker {
-	private final class BuildBytes implements Comparable<BuildBytes> {
-		private final byte[] bytes;
+public class BuildWalker implements BuildSearch {
+	// Walkers fork off work while fewer than this many tasks are queued locally
+	private static final int SPLIT_SURPLUS = 3;
+	
+	public static class Builder {
+		private final List<Map<Constellation, Double>> constellationValues;
+		private final List<Map<Star, Double>> starValues;
+		private final List<TopBuilds> topBuilds;
+		private VisitedBuilds visitedBuilds;
+		private boolean pruning;
+		private boolean canonical;
+		private boolean symmetric;
+		
+		public Builder(Map<Constellation, Double> constellationValues,
+				Map<Star, Double> starValues, TopBuilds topBuilds) {
+			this(Collections.singletonList(constellationValues),
+					Collections.singletonList(starValues),
+					Collections.singletonList(topBuilds));
+		}
 		
-		private BuildBytes(Collection<Constellation> build) {
-			bytes = new byte[build.size()];
-			int i = 0;
-			for (Constellation c : build) {
-				bytes[i++] = (byte)(Byte.MIN_VALUE + c.getOrdinal());
+		/**
+		 * Walks once for several value profiles. Each build is scored with every
+		 *  profile's constellation and star values, and submitted to that
+		 *  profile's TopBuilds. The lists are indexed by profile.
+		 */
+		public Builder(List<Map<Constellation, Double>> constellationValues,
+				List<Map<Star, Double>> starValues, List<TopBuilds> topBuilds) {
+			if (constellationValues.isEmpty()
+					|| starValues.size() != constellationValues.size()
+					|| topBuilds.size() != constellationValues.size()) {
+				throw new IllegalArgumentException("Each profile needs constellation values,"
+						+ " star values and top builds");
 			}
+			this.constellationValues = constellationValues;
+			this.starValues = starValues;
+			this.topBuilds = topBuilds;
+			this.visitedBuilds = null;
+			this.pruning = false;
+			this.canonical = false;
+			this.symmetric = false;
 		}
 		
-		public int hashCode() {
-			return Arrays.hashCode(bytes);
+		/**
+		 * Sets where visited builds are recorded. Defaults to a VisitedBuildSet
+		 *  on the heap.
+		 */
+		public Builder visitedBuilds(VisitedBuilds visitedBuilds) {
+			this.visitedBuilds = visitedBuilds;
+			return this;
 		}
 		
-		public boolean equals(Object other) {
-			if (other == null) {return false; }
-			if (!(other instanceof BuildBytes)) {return false; }
-			return Arrays.equals(bytes, ((BuildBytes)other).bytes);
+		/**
+		 * Enables branch-and-bound pruning: additions are not explored from a
+		 *  build when even its best possible extension could not enter the
+		 *  TopBuilds of any profile. Only canonical walks can be pruned: a walk
+		 *  that also removes constellations can reach a better build through
+		 *  one that is added only to be removed again, so the bound does not
+		 *  hold there, and build() refuses the combination.
+		 */
+		public Builder pruning(boolean pruning) {
+			this.pruning = pruning;
+			return this;
 		}
 		
-		public int compareTo(BuildWalker.BuildBytes other) {
-			int i = 0;
-			int diff;
-			while (i < bytes.length && i < other.bytes.length) {
-				diff = bytes[i] - other.bytes[i];
-				if (diff != 0) {
-					return diff;
-				}
-				i++;
-			}
-			return bytes.length - other.bytes.length;
+		/**
+		 * Enumerates each valid build once in a canonical order, instead of
+		 *  walking between builds by adding and removing constellations. No
+		 *  visited builds are recorded, so memory does not grow with the run.
+		 */
+		public Builder canonical(boolean canonical) {
+			this.canonical = canonical;
+			return this;
 		}
 		
-		public String toString() {
-			StringBuilder builder = new StringBuilder("[");
-			if (bytes.length > 0) {
-				builder.append(bytes[0]);
-				for (int i = 1; i < bytes.length; i++) {
-					builder.append(", " + bytes[i]);
-				}
+		/**
+		 * Treats interchangeable constellations (see EquivalentConstellations)
+		 *  as one: only builds that take the members of each class in order are
+		 *  walked, and TopBuilds receives every build equivalent to them.
+		 */
+		public Builder symmetric(boolean symmetric) {
+			this.symmetric = symmetric;
+			return this;
+		}
+		
+		/**
+		 * @throws IllegalStateException if pruning is enabled for a walk that
+		 *  is not canonical
+		 */
+		public BuildWalker build() {
+			if (pruning && !canonical) {
+				throw new IllegalStateException("Branch-and-bound pruning needs a canonical walk");
 			}
-			builder.append("]");
-			return builder.toString();
+			return new BuildWalker(this);
 		}
 	}
 	
-	private class Walker implements Runnable {
+	/**
+	 * A part of a canonical walk that can be walked on its own, see
+	 *  workUnits(). The prefix holds positions in the canonical order, as
+	 *  the steps of a CanonicalWalker do.
+	 */
+	public static final class WorkUnit {
+		private final int[] prefix;
+		private final boolean subtree;
+		
+		/**
+		 * @param prefix: positions of the unit's root build, in increasing order
+		 * @param subtree: whether the unit takes every build that extends the
+		 *  root, or only the root itself
+		 */
+		public WorkUnit(int[] prefix, boolean subtree) {
+			this.prefix = prefix;
+			this.subtree = subtree;
+		}
+		
+		public int[] getPrefix() {
+			return prefix;
+		}
+		
+		public boolean isSubtree() {
+			return subtree;
+		}
+	}
+	
+	/**
+	 * A unit of work on the walk, forked onto the pool. A task starts from a
+	 *  root reached by its prefix of steps, and keeps a stack of frames below
+	 *  the root: path[d] is the step taken from frame d to frame d+1, and
+	 *  cursors[d] is how far frame d has got through its options. How steps
+	 *  and options are read depends on the kind of walk.
+	 */
+	private abstract class Task extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		// Number of steps leading from the empty build to the root of this task's subtree
+		protected final int rootDepth;
+		
+		// Whether the task has finished its root and begun walking
+		protected boolean started;
+		
 		// Build variables represent the state of the build at each step in the walk
-		SortedSet<Constellation> build;
+		ConstellationSet build;
 		int buildStars;
-		double buildValue;
+		double[] buildValues; // value of the build under each profile
 		AffinityValues buildAffinities;
 		
-		// Options for the next step in the walk
-		Stack<Constellation> options;
+		int depth;
+		int[] path;
+		int[] cursors;
 		
-		// The history of choices the walk has taken to get to the current step
-		Stack<Constellation> path;
+		BuildFinisher[] buildFinishers; // by profile, shared with tasks on the same thread
 		
-		BuildFinisher buildFinisher;
+		/**
+		 * @param prefix: steps to the root of the subtree
+		 */
+		protected Task(int[] prefix) {
+			this.rootDepth = prefix.length;
+			this.started = false;
+			this.depth = prefix.length;
+			this.path = prefix;
+			this.cursors = null;
+			liveWalkers.add(this);
+		}
 		
-		public Walker() {
-			build = new TreeSet<Constellation>(new Comparator<Constellation>() {
-					public int compare(Constellation c1, Constellation c2) {
-						return c1.getOrdinal() - c2.getOrdinal();
-				}
-			});
-			buildStars = 0;
-			buildValue = 0.0;
-			buildAffinities = new AffinityValues();
+		/**
+		 * Re-creates a task that had started, from its checkpointed frames.
+		 */
+		protected Task(int rootDepth, int[] path, int[] cursors) {
+			this.rootDepth = rootDepth;
+			this.started = true;
+			this.depth = path.length;
+			this.path = path;
+			this.cursors = cursors;
+			liveWalkers.add(this);
+		}
+		
+		protected void compute() {
+			boolean walked = false;
 			
-			options = new Stack<Constellation>();
-			path = new Stack<Constellation>();
+			if (!enterRunning()) { return; }
+			try {
+				build = new ConstellationSet(constellations);
+				buildStars = 0;
+				buildValues = new double[numProfiles];
+				buildAffinities = new AffinityValues();
+				
+				buildFinishers = threadFinishers(Thread.currentThread());
+				
+				int[] frames = path;
+				int[] frameCursors = cursors;
+				path = null;
+				cursors = null;
+				allocateFrames(Math.max(16, 2 * frames.length));
+				replay(frames, frameCursors);
+				
+				walked = walk();
+			} finally {
+				if (walked) {
+					liveWalkers.remove(this);
+				}
+				exitRunning();
+			}
+		}
+		
+		/**
+		 * Sizes the frame arrays to hold at least the given number of steps,
+		 *  keeping the frames already on them.
+		 */
+		protected void allocateFrames(int steps) {
+			path = path == null ? new int[steps] : Arrays.copyOf(path, steps);
+			cursors = cursors == null ? new int[steps + 1] : Arrays.copyOf(cursors, steps + 1);
+		}
+		
+		/**
+		 * Takes the steps in frames to reach the current frame. A started task
+		 *  restores the cursors of its frames from frameCursors, which start at
+		 *  the root. Otherwise the root is finished and its frame opened.
+		 */
+		protected abstract void replay(int[] frames, int[] frameCursors);
+		
+		/**
+		 * Walks until every option of the root frame has been tried, or the
+		 *  walk is stopped.
+		 * 
+		 * @return true if the subtree was walked completely
+		 */
+		protected abstract boolean walk();
+		
+		/**
+		 * Writes the task's position, so it can be re-created by readTask().
+		 *  Only call while the task is parked, or not running.
+		 */
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(rootDepth);
+			out.writeInt(depth);
+			for (int d = 0; d < depth; d++) {
+				out.writeInt(path[d]);
+			}
+			out.writeBoolean(started);
+			if (started) {
+				for (int d = rootDepth; d <= depth; d++) {
+					out.writeInt(cursors[d]);
+				}
+			}
+		}
+		
+		/**
+		 * Adds the constellation to the build if it is not in it, otherwise
+		 *  removes it from the build.
+		 */
+		protected void toggle(Constellation c) {
+			int offset = c.getOrdinal() * numProfiles;
+			if (build.remove(c)) {
+				buildStars -= c.numStars();
+				for (int k = 0; k < numProfiles; k++) {
+					buildValues[k] -= cValues[offset + k];
+				}
+				buildAffinities.subtract(c.getReward());
+			} else {
+				build.add(c);
+				buildStars += c.numStars();
+				for (int k = 0; k < numProfiles; k++) {
+					buildValues[k] += cValues[offset + k];
+				}
+				buildAffinities.add(c.getReward());
+			}
+		}
+		
+		/**
+		 * @return true if no build reached by adding constellations to the
+		 *  current build can enter any profile's TopBuilds. Every added star,
+		 *  full or partial, is worth at most one of the best unspent star values.
+		 */
+		protected boolean cannotImprove() {
+			int offset = (Controller.MAX_STARS - buildStars) * numProfiles;
+			for (int k = 0; k < numProfiles; k++) {
+				if (buildValues[k] + bestStarSums[offset + k] > topBuilds[k].getThreshold()) {
+					return false;
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Finds the best use for the build's unspent stars under each profile,
+		 *  and gives the finished build to that profile's TopBuilds. A profile
+		 *  is skipped when no finish could lift the build into its TopBuilds.
+		 */
+		protected void finish() {
+			int offset = (Controller.MAX_STARS - buildStars) * numProfiles;
+			for (int k = 0; k < numProfiles; k++) {
+				if (buildValues[k] + finishBounds[offset + k] <= topBuilds[k].getThreshold()) {
+					finishesSkipped.increment();
+					continue;
+				}
+				finishesRun.increment();
+				double value = buildValues[k]
+						+ buildFinishers[k].finish(build, buildStars, buildAffinities);
+				
+				// The partials are only copied out for a build that enters
+				if (value <= topBuilds[k].getThreshold()) { continue; }
+				if (equivalents != null) {
+					topBuilds[k].submit(build, buildFinishers[k].getPartials(), value, equivalents);
+				} else {
+					topBuilds[k].submit(build, buildFinishers[k].getPartials(), value);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Walks the subtree of builds below the build reached by its prefix of
+	 *  choices. When other workers run short of work, newly reached builds are
+	 *  forked off as new Walkers instead of being walked in place, so idle
+	 *  workers steal whole unexplored subtrees.
+	 */
+	private class Walker extends Task {
+		private static final long serialVersionUID = 1L;
+		
+		/*
+		 * path[d] is the ordinal of the constellation added or removed to get
+		 * from step d to step d+1, and cursors[d] is how far step d has got
+		 * through its options (see nextOption()). Since a step's build is
+		 * restored exactly on backtrack, its options are evaluated lazily from
+		 * the cursor, and returning to a step just resumes its frame. The
+		 * constellations available at step d are kept in available, from word
+		 * d * width.
+		 */
+		long[] available;
+		
+		/**
+		 * @param prefix: ordinals of the constellations added or removed, in order,
+		 *  to reach the root of the subtree. A non-empty root must already be in
+		 *  visitedBuilds, and is finished and submitted by this walker.
+		 */
+		public Walker(int[] prefix) {
+			super(prefix);
+		}
+		
+		private Walker(int rootDepth, int[] path, int[] cursors) {
+			super(rootDepth, path, cursors);
+		}
+		
+		protected void allocateFrames(int steps) {
+			super.allocateFrames(steps);
+			available = available == null
+					? new long[cursors.length * width]
+					: Arrays.copyOf(available, cursors.length * width);
+		}
+		
+		protected void replay(int[] frames, int[] frameCursors) {
+			for (depth = 0; depth < frames.length; depth++) {
+				if (started && depth >= rootDepth) {
+					requirementIndex.available(buildAffinities, available, depth * width);
+					cursors[depth] = frameCursors[depth - rootDepth];
+				}
+				toggle(constellations[frames[depth]]);
+				path[depth] = frames[depth];
+			}
 			
-			buildFinisher = bfBuilder.build();
+			if (started) {
+				requirementIndex.available(buildAffinities, available, depth * width);
+				cursors[depth] = frameCursors[depth - rootDepth];
+			} else {
+				if (rootDepth > 0) {
+					finish();
+				}
+				openFrame();
+				started = true;
+			}
 		}
 		
-		public void run() {
-			pickOptions();
-			while ((options.size() > 0 || path.size() > 0) && continueWalking) {
+		protected boolean walk() {
+			while (continueWalking) {
+				safePoint();
 				
-				// If the options for this step are empty, return to the previous step
-				if (options.size() == 0) {
-					Constellation popStella = path.pop();
-					
-					// If the popped constellation must be removed
-					if (build.remove(popStella)) {
-						buildStars -= popStella.numStars();
-						buildValue -= cValues[popStella.getOrdinal()];
-						buildAffinities.subtract(popStella.getReward());
-					}
-					// If the popped constellation must be added back on
-					else {
-						build.add(popStella);
-						buildStars += popStella.numStars();
-						buildValue += cValues[popStella.getOrdinal()];
-						buildAffinities.add(popStella.getReward());
-					}
-					
-					// Re-create the options stack for the previous step
-					pickOptions();
-					while (options.peek() != popStella) {options.pop(); }
-					options.pop();
+				Constellation stepStella = nextOption();
+				
+				// If the options for this step are used up, return to the previous step
+				if (stepStella == null) {
+					if (depth == rootDepth) { return true; }
+					toggle(constellations[path[--depth]]);
 				}
-				// Else, try proceeding to the next step by selecting the next option
+				// Else, try proceeding to the next step with the selected option
 				else {
-					Constellation stepStella = options.pop();
+					toggle(stepStella);
 					
-					// If the selection is a removal
-					if (build.remove(stepStella)) {
-						BuildBytes buildBytes = new BuildBytes(build);
-						buildAffinities.subtract(stepStella.getReward());
-						// If all constellation requirements are still met
-						//  and the new build can be added to the visited builds set
-						if (allAvailable(build, buildAffinities) && visitedBuilds.add(buildBytes)) {
-							buildStars -= stepStella.numStars();
-							buildValue -= cValues[stepStella.getOrdinal()];
-							path.push(stepStella);
-							pickOptions();
-							
-							// Find the best use for unspent stars
-							BuildFinisher.PartialBuild partial =
-									buildFinisher.bestPartialBuild(build, buildStars, buildAffinities);
+					// If a removal, all constellation requirements must still be met
+					boolean valid = build.contains(stepStella)
+							|| requirementIndex.validAfterRemoving(
+									build.words(), buildAffinities, stepStella);
+					
+					// If the new build is valid and can be added to the visited builds set
+					if (valid && visitedBuilds.add(build.words())) {
+						// If other workers are short of work, give them the new build's subtree
+						if (getSurplusQueuedTaskCount() < SPLIT_SURPLUS) {
+							int[] childPrefix = Arrays.copyOf(path, depth + 1);
+							childPrefix[depth] = stepStella.getOrdinal();
 							
-							// Give the finished build to TopBuilds
-							topBuilds.submit(
-									build, partial.getPartials(), buildValue + partial.getValue());
-						}
-						// If the build is not valid or has been visited, roll back changes
-						else {
-							build.add(stepStella);
-							buildAffinities.add(stepStella.getReward());
+							new Walker(childPrefix).fork();
+							toggle(stepStella);
+						} else {
+							if (depth + 1 >= path.length) {
+								allocateFrames(2 * path.length);
+							}
+							path[depth++] = stepStella.getOrdinal();
+							finish();
+							openFrame();
 						}
 					}
-					// If the selection is an addition
+					// If the build is not valid or has been visited, roll back changes
 					else {
-						build.add(stepStella);
-						BuildBytes buildBytes = new BuildBytes(build);
-						
-						// If the new build can be added to the visited builds set
-						if (visitedBuilds.add(buildBytes)) {
-							buildStars += stepStella.numStars();
-							buildValue += cValues[stepStella.getOrdinal()];
-							buildAffinities.add(stepStella.getReward());
-							path.push(stepStella);
-							pickOptions();
-							
-							// Find the best use for unspent stars
-							BuildFinisher.PartialBuild partial =
-									buildFinisher.bestPartialBuild(build, buildStars, buildAffinities);
-							
-							// Give the finished build to TopBuilds
-							topBuilds.submit(
-									build, partial.getPartials(), buildValue + partial.getValue());
-						}
-						// If the build has been visited, roll back changes
-						else {
-							build.remove(stepStella);
-						}
+						toggle(stepStella);
 					}
 				}
 			}
+			return false;
+		}
+		
+		/**
+		 * Starts the options of the current step.
+		 */
+		private void openFrame() {
+			requirementIndex.available(buildAffinities, available, depth * width);
+			cursors[depth] = 0;
 		}
 		
 		/**
-		 * Populates an options stack with an ordered list of valid constellation
-		 *  selections for the next step in the walk. Removals are on the bottom
-		 *  of the options stack, with lowest value removals on top. Additions are
-		 *  on top of the options stack, with highest value additions on top.
-		 * WARNING: For removals, pickOptions() does NOT check if the resulting
+		 * Selects the next option of the current step and moves its cursor past
+		 *  it. Cursors 0 to n-1 are additions, from highest to lowest value, and
+		 *  cursors n to 2n-1 are removals, from lowest to highest value.
+		 * WARNING: For removals, nextOption() does NOT check if the resulting
 		 *  build will be valid.
 		 * Uses: sortedConstellations
+		 * 
+		 * @return the constellation to add or remove, or null if there are no
+		 *  options left
 		 */
-		private void pickOptions() {
-			options.clear();
-
-			/*
-			 * Constellations are sorted from low to high value. To get the desired
-			 * order, add removals to the bottom, and add additions to the top.
-			 */
-			for (Constellation constellation : sortedConstellations) {
-				if (constellation.isAvailableWith(buildAffinities)) {
-					// If this selection would be a removal
-					if (build.contains(constellation)) {
-						options.add(0, constellation);
-					// If this addition would not put the build over the star limit
-					} else if (buildStars + constellation.numStars() <= Controller.MAX_STARS) {
-						options.add(constellation);
+		private Constellation nextOption() {
+			int n = numConstellations;
+			int cursor = cursors[depth];
+			int frame = depth * width;
+			
+			for (; cursor < n; cursor++) {
+				Constellation constellation = sortedConstellations.get(n - 1 - cursor);
+				// If this addition is available and would not put the build over the star limit
+				if (!build.contains(constellation)
+						&& buildStars + constellation.numStars() <= Controller.MAX_STARS
+						&& isAvailable(frame, constellation)
+						&& inOrderWith(constellation)) {
+					cursors[depth] = cursor + 1;
+					return constellation;
+				}
+			}
+			for (; cursor < 2 * n; cursor++) {
+				Constellation constellation = sortedConstellations.get(cursor - n);
+				if (build.contains(constellation)
+						&& isAvailable(frame, constellation)
+						&& inOrderWithout(constellation)) {
+					cursors[depth] = cursor + 1;
+					return constellation;
+				}
+			}
+			
+			cursors[depth] = cursor;
+			return null;
+		}
+		
+		private boolean isAvailable(int frame, Constellation c) {
+			int ordinal = c.getOrdinal();
+			return (available[frame + (ordinal >>> 6)] & (1L << ordinal)) != 0;
+		}
+		
+		/*
+		 * Whether the build keeps its equivalent constellations in order with
+		 * c added, or with c removed
+		 */
+		private boolean inOrderWith(Constellation c) {
+			int previous = previousEquivalent[c.getOrdinal()];
+			return previous < 0 || build.containsOrdinal(previous);
+		}
+		
+		private boolean inOrderWithout(Constellation c) {
+			int next = nextEquivalent[c.getOrdinal()];
+			return next < 0 || !build.containsOrdinal(next);
+		}
+	}
+	
+	/**
+	 * Generates each valid build exactly once, as its constellations taken in
+	 *  canonicalOrder, so builds need no record of having been visited and a
+	 *  walker only holds its own frames. A build is valid when every
+	 *  constellation's requirement is met by the rewards of the whole build,
+	 *  its own included, and it has at most MAX_STARS stars. These are the
+	 *  builds the walk reaches, unless reaching one takes more stars of
+	 *  supporting constellations than fit under the limit.
+	 * A constellation is only added if the rewards of the constellations
+	 *  after it in the order could still meet the requirements of the build,
+	 *  so subtrees without a valid build are not entered.
+	 */
+	private class CanonicalWalker extends Task {
+		private static final long serialVersionUID = 1L;
+		
+		/*
+		 * path[d] is the position in canonicalOrder of the build's d-th
+		 * constellation, and cursors[d] is the next position frame d will try
+		 * to add. need[d] holds the highest requirement of each affinity among
+		 * the first d constellations, packed as in AffinityValues.
+		 */
+		long[] need;
+		
+		// Whether to walk the builds below the root, or only finish the root
+		private final boolean walkSubtree;
+		
+		/**
+		 * @param prefix: positions in canonicalOrder of the constellations of
+		 *  the root build, in increasing order. The root is counted, finished
+		 *  and submitted by this walker.
+		 */
+		public CanonicalWalker(int[] prefix) {
+			this(prefix, true);
+		}
+		
+		public CanonicalWalker(int[] prefix, boolean walkSubtree) {
+			super(prefix);
+			this.walkSubtree = walkSubtree;
+		}
+		
+		private CanonicalWalker(int rootDepth, int[] path, int[] cursors) {
+			super(rootDepth, path, cursors);
+			this.walkSubtree = true;
+		}
+		
+		protected void allocateFrames(int steps) {
+			super.allocateFrames(steps);
+			need = need == null
+					? new long[cursors.length]
+					: Arrays.copyOf(need, cursors.length);
+		}
+		
+		protected void replay(int[] frames, int[] frameCursors) {
+			for (depth = 0; depth < frames.length; depth++) {
+				if (started && depth >= rootDepth) {
+					cursors[depth] = frameCursors[depth - rootDepth];
+				}
+				path[depth] = frames[depth];
+				include(frames[depth]);
+			}
+			
+			if (started) {
+				cursors[depth] = frameCursors[depth - rootDepth];
+			} else {
+				openFrame();
+				if (!walkSubtree) {
+					cursors[depth] = numOrdered;
+				}
+				started = true;
+			}
+		}
+		
+		protected boolean walk() {
+			while (continueWalking) {
+				safePoint();
+				
+				int position = nextOption();
+				
+				// If the options for this build are used up, return to the previous build
+				if (position < 0) {
+					if (depth == rootDepth) { return true; }
+					toggle(constellations[canonicalOrder[path[--depth]]]);
+					
+					// Skip the remaining additions if they can no longer reach TopBuilds
+					if (pruning && cursors[depth] < numOrdered && cannotImprove()) {
+						cursors[depth] = numOrdered;
+						prunedNodes.increment();
+					}
+				}
+				// If other workers are short of work, give them the new build's subtree
+				else if (getSurplusQueuedTaskCount() < SPLIT_SURPLUS) {
+					int[] childPrefix = Arrays.copyOf(path, depth + 1);
+					childPrefix[depth] = position;
+					
+					new CanonicalWalker(childPrefix).fork();
+				}
+				else {
+					if (depth + 1 >= path.length) {
+						allocateFrames(2 * path.length);
 					}
+					path[depth] = position;
+					include(position);
+					depth++;
+					openFrame();
+				}
+			}
+			return false;
+		}
+		
+		/**
+		 * Counts and finishes the current build if it is valid, then starts
+		 *  the options for adding to it.
+		 */
+		private void openFrame() {
+			boolean prune = pruning && cannotImprove();
+			
+			if (isValid()) {
+				buildsEnumerated.increment();
+				if (!prune) {
+					finish();
+				}
+			}
+			
+			if (prune) {
+				cursors[depth] = numOrdered;
+				prunedNodes.increment();
+			} else {
+				cursors[depth] = depth == 0 ? 0 : path[depth - 1] + 1;
+			}
+		}
+		
+		/**
+		 * Selects the next position in canonicalOrder whose constellation
+		 *  fits under the star limit and leaves the build completable, and moves
+		 *  the current frame's cursor past it.
+		 * 
+		 * @return the position of the constellation to add, or -1 if there are
+		 *  no options left
+		 */
+		private int nextOption() {
+			long frameNeed = need[depth];
+			long affinities = buildAffinities.packed();
+			
+			for (int position = cursors[depth]; position < numOrdered; position++) {
+				if (canAdd(position, build, buildStars, affinities, frameNeed)) {
+					cursors[depth] = position + 1;
+					return position;
 				}
 			}
+			
+			cursors[depth] = numOrdered;
+			return -1;
+		}
+		
+		/**
+		 * Adds the constellation at a position in canonicalOrder to the build,
+		 *  and records the requirements of the next frame.
+		 */
+		private void include(int position) {
+			toggle(constellations[canonicalOrder[position]]);
+			need[depth + 1] = AffinityValues.max(need[depth], orderRequirements[position]);
+		}
+		
+		private boolean isValid() {
+			return AffinityValues.fulfills(buildAffinities.packed(), need[depth]);
 		}
 	}
 	
 	// Resources shared between walker tasks
 	private final List<Constellation> sortedConstellations;
-	private final double[] cValues; // constellation values by constellation ordinal
-	private final Set<BuildBytes> visitedBuilds;
-	private final BuildFinisher.Builder bfBuilder;
-	private final TopBuilds topBuilds;
+	private final int numConstellations;
+	private final Constellation[] constellations; // constellations by ordinal
+	private final int width; // long words in a constellation bitset
+	private final RequirementIndex requirementIndex;
+	private final VisitedBuilds visitedBuilds; // null when enumerating canonically
+	
+	/*
+	 * Each value profile has its own finisher and top builds. cValues holds
+	 * the value of each constellation under every profile, from index
+	 * ordinal * numProfiles, so a step updates the profiles' values together.
+	 */
+	private final int numProfiles;
+	private final double[] cValues;
+	private final BuildFinisher.Builder[] bfBuilders;
 	
-	private boolean continueWalking = false;
+	// Finishers by profile for each worker thread. Tasks never wait on each
+	// other, so a thread runs one task at a time, and its tasks share the
+	// finishers' knapsack layers instead of each building its own. Kept by the
+	// walker rather than in thread locals, so a shared pool's threads don't
+	// hold on to them once the walk is stopped.
+	private final Map<Thread, BuildFinisher[]> threadFinishers;
+	private final TopBuilds[] topBuilds;
 	
-	private List<Thread> activeThreads;
+	// Interchangeable constellations when walking symmetrically, otherwise null.
+	// The ordinal of the member before and after each constellation in its
+	// class, or -1.
+	private final EquivalentConstellations equivalents;
+	private final int[] previousEquivalent;
+	private final int[] nextEquivalent;
+	
+	// Branch-and-bound pruning of canonical walks, bestStarSums[n * numProfiles + k]
+	// is the sum of the n best star values of profile k
+	private final boolean pruning;
+	private final double[] bestStarSums;
+	private final LongAdder prunedNodes;
+	
+	// finishBounds[n * numProfiles + k] is the most profile k's finisher can
+	// add with n unspent stars (see BuildFinisher.Builder.maxPartialValue()).
+	// Finisher calls made, and skipped because they could not beat the
+	// threshold, are counted once per build and profile.
+	private final double[] finishBounds;
+	private final LongAdder finishesRun;
+	private final LongAdder finishesSkipped;
+	
+	/*
+	 * Canonical enumeration takes constellations in order of increasing total
+	 * requirement, leaving out any that can't be reached by adding
+	 * constellations one at a time from the empty build. orderRequirements
+	 * holds the packed requirement of the constellation at each position, and
+	 * suffixRewards the sum of rewards from that position to the end, with
+	 * each affinity saturated at AffinityValues.MAX_VALUE.
+	 */
+	private final boolean canonical;
+	private final int[] canonicalOrder; // constellation ordinals by position
+	private final int numOrdered;
+	private final int[] orderStars;
+	private final long[] orderRequirements;
+	private final long[] suffixRewards;
+	private final LongAdder buildsEnumerated;
+	
+	private volatile boolean continueWalking = false;
+	
+	private ForkJoinPool pool;
+	private boolean ownsPool;
+	
+	// Walkers that have been created and have not walked their whole subtree
+	private final Set<Task> liveWalkers;
+	
+	// Walkers re-created from a checkpoint, to be started by start()
+	private final List<Task> restoredWalkers;
+	private boolean restored;
+	
+	// Pausing parks running walkers between steps, guarded by pauseLock
+	private final Object pauseLock;
+	private volatile boolean paused;
+	private int runningWalkers;
 	
 	public BuildWalker(Map<Constellation, Double> constellationValues,
 			Map<Star, Double> starValues, TopBuilds topBuilds) {
+		this(new Builder(constellationValues, starValues, topBuilds));
+	}
+	
+	private BuildWalker(Builder builder) {
+		// Walk order follows the values of the first profile
+		final Map<Constellation, Double> constellationValues = builder.constellationValues.get(0);
+		numProfiles = builder.constellationValues.size();
+		
 		sortedConstellations = new ArrayList<Constellation>(constellationValues.keySet());
 		Collections.sort(sortedConstellations, new Comparator<Constellation>() {
 			public int compare(Constellation c1, Constellation c2) {
@@ -229,19 +771,96 @@ public class BuildWalker {
 			}
 		});
 		
-		cValues = new double[sortedConstellations.size()];
+		numConstellations = sortedConstellations.size();
+		constellations = new Constellation[sortedConstellations.size()];
+		cValues = new double[sortedConstellations.size() * numProfiles];
 		for (Constellation c : sortedConstellations) {
-			cValues[c.getOrdinal()] = constellationValues.get(c);
+			constellations[c.getOrdinal()] = c;
+			for (int k = 0; k < numProfiles; k++) {
+				cValues[c.getOrdinal() * numProfiles + k] = builder.constellationValues.get(k).get(c);
+			}
 		}
 		
-		visitedBuilds = ConcurrentHashMap.newKeySet();
+		requirementIndex = new RequirementIndex(constellations);
+		width = requirementIndex.width();
 		
-
-		bfBuilder = new BuildFinisher.Builder(sortedConstellations, starValues);
-		this.topBuilds = topBuilds;
+		canonical = builder.canonical;
+		if (canonical) {
+			visitedBuilds = null;
+		} else if (builder.visitedBuilds != null) {
+			visitedBuilds = builder.visitedBuilds;
+		} else {
+			visitedBuilds = new VisitedBuildSet(width);
+		}
+		
+		bfBuilders = new BuildFinisher.Builder[numProfiles];
+		topBuilds = builder.topBuilds.toArray(new TopBuilds[numProfiles]);
+		bestStarSums = new double[(Controller.MAX_STARS + 1) * numProfiles];
+		finishBounds = new double[(Controller.MAX_STARS + 1) * numProfiles];
+		for (int k = 0; k < numProfiles; k++) {
+			Map<Star, Double> starValues = builder.starValues.get(k);
+			bfBuilders[k] = new BuildFinisher.Builder(
+					sortedConstellations, requirementIndex, starValues);
+			double[] sums = bestStarSums(starValues.values());
+			for (int n = 0; n <= Controller.MAX_STARS; n++) {
+				bestStarSums[n * numProfiles + k] = sums[n];
+				finishBounds[n * numProfiles + k] = bfBuilders[k].maxPartialValue(n);
+			}
+		}
+		threadFinishers = new ConcurrentHashMap<Thread, BuildFinisher[]>();
+		
+		previousEquivalent = new int[numConstellations];
+		nextEquivalent = new int[numConstellations];
+		if (builder.symmetric) {
+			equivalents = new EquivalentConstellations(
+					sortedConstellations, builder.constellationValues, builder.starValues);
+			for (Constellation c : sortedConstellations) {
+				previousEquivalent[c.getOrdinal()] = equivalents.previous(c);
+				nextEquivalent[c.getOrdinal()] = equivalents.next(c);
+			}
+		} else {
+			equivalents = null;
+			Arrays.fill(previousEquivalent, -1);
+			Arrays.fill(nextEquivalent, -1);
+		}
+		
+		pruning = builder.pruning;
+		prunedNodes = new LongAdder();
+		finishesRun = new LongAdder();
+		finishesSkipped = new LongAdder();
+		
+		List<Constellation> byRequirement = reachableConstellations(sortedConstellations);
+		Collections.sort(byRequirement, new Comparator<Constellation>() {
+			public int compare(Constellation c1, Constellation c2) {
+				int diff = c1.getRequirement().total() - c2.getRequirement().total();
+				return diff != 0 ? diff : c1.getOrdinal() - c2.getOrdinal();
+			}
+		});
+		numOrdered = byRequirement.size();
+		canonicalOrder = new int[numOrdered];
+		orderStars = new int[numOrdered];
+		orderRequirements = new long[numOrdered];
+		suffixRewards = new long[numOrdered + 1];
+		for (int position = 0; position < numOrdered; position++) {
+			Constellation c = byRequirement.get(position);
+			canonicalOrder[position] = c.getOrdinal();
+			orderStars[position] = c.numStars();
+			orderRequirements[position] = c.getRequirement().packed();
+		}
+		for (int position = numOrdered - 1; position >= 0; position--) {
+			suffixRewards[position] = AffinityValues.saturatedSum(suffixRewards[position + 1],
+					constellations[canonicalOrder[position]].getReward().packed());
+		}
+		buildsEnumerated = new LongAdder();
 		
 		continueWalking = true;
-		activeThreads = new ArrayList<Thread>();
+		liveWalkers = ConcurrentHashMap.newKeySet();
+		restoredWalkers = new ArrayList<Task>();
+		restored = false;
+		
+		pauseLock = new Object();
+		paused = false;
+		runningWalkers = 0;
 	}
 	
 	public void start() {
@@ -249,31 +868,410 @@ public class BuildWalker {
 	}
 	
 	public void start(int numThreads) {
-		for (int i = 0; i < numThreads; i++) {
-			Thread t = new Thread(new Walker());
-			activeThreads.add(t);
-			t.start();
+		start(new ForkJoinPool(numThreads));
+		ownsPool = true;
+	}
+	
+	public void start(ForkJoinPool pool) {
+		this.pool = pool;
+		ownsPool = false;
+		if (!restored) {
+			pool.execute(canonical ? new CanonicalWalker(new int[0]) : new Walker(new int[0]));
 		}
+		for (Task walker : restoredWalkers) {
+			pool.execute(walker);
+		}
+		restoredWalkers.clear();
+	}
+	
+	/**
+	 * Splits a canonical walk into at least minUnits work units, if it has
+	 *  that many builds, by expanding the shallowest subtrees first. The
+	 *  units don't overlap, and together they take every build the walk
+	 *  would, so walking each of them once with walkUnit() is the same as
+	 *  walking the whole tree. Pruning is left to the walk of each unit.
+	 */
+	public List<WorkUnit> workUnits(int minUnits) {
+		if (!canonical) {
+			throw new IllegalStateException("Only canonical walks split into work units");
+		}
+		List<WorkUnit> units = new ArrayList<WorkUnit>();
+		Deque<int[]> subtrees = new ArrayDeque<int[]>();
+		subtrees.add(new int[0]);
+		while (!subtrees.isEmpty() && units.size() + subtrees.size() < minUnits) {
+			int[] prefix = subtrees.poll();
+			
+			ConstellationSet build = new ConstellationSet(constellations);
+			int stars = 0;
+			AffinityValues affinities = new AffinityValues();
+			long need = 0L;
+			for (int position : prefix) {
+				Constellation c = constellations[canonicalOrder[position]];
+				build.add(c);
+				stars += c.numStars();
+				affinities.add(c.getReward());
+				need = AffinityValues.max(need, orderRequirements[position]);
+			}
+			
+			// The root on its own, if there is a valid build to finish there
+			if (AffinityValues.fulfills(affinities.packed(), need)) {
+				units.add(new WorkUnit(prefix, false));
+			}
+			int from = prefix.length == 0 ? 0 : prefix[prefix.length - 1] + 1;
+			for (int position = from; position < numOrdered; position++) {
+				if (canAdd(position, build, stars, affinities.packed(), need)) {
+					int[] child = Arrays.copyOf(prefix, prefix.length + 1);
+					child[prefix.length] = position;
+					subtrees.add(child);
+				}
+			}
+		}
+		for (int[] prefix : subtrees) {
+			units.add(new WorkUnit(prefix, true));
+		}
+		return units;
+	}
+	
+	/**
+	 * Walks one work unit of a canonical walk on the pool, and waits until it
+	 *  is done. Counts and TopBuilds carry on from the units walked before.
+	 *  The walker must not have been started with start().
+	 *
+	 * @return true if the unit was walked completely, false if the walk was
+	 *  stopped first
+	 * @throws IllegalArgumentException if the unit's prefix is not a valid
+	 *  canonical prefix of this walk
+	 */
+	public boolean walkUnit(WorkUnit unit, ForkJoinPool pool) throws InterruptedException {
+		if (!canonical) {
+			throw new IllegalStateException("Only canonical walks split into work units");
+		}
+		int[] prefix = unit.getPrefix();
+		for (int d = 0; d < prefix.length; d++) {
+			if (prefix[d] < (d == 0 ? 0 : prefix[d - 1] + 1) || prefix[d] >= numOrdered) {
+				throw new IllegalArgumentException("Work unit does not match the constellations");
+			}
+		}
+		
+		this.pool = pool;
+		ownsPool = false;
+		pool.execute(new CanonicalWalker(prefix.clone(), unit.isSubtree()));
+		
+		// Walkers leave liveWalkers before signalling pauseLock on exit
+		synchronized (pauseLock) {
+			while (!liveWalkers.isEmpty() && continueWalking) {
+				pauseLock.wait();
+			}
+		}
+		return liveWalkers.isEmpty();
 	}
 	
 	public void stop() {
-		continueWalking = false; // signal active threads to stop
-		for (Thread t : activeThreads) {
+		continueWalking = false; // signal active walkers to stop
+		resume();
+		if (pool == null) { return; }
+		if (ownsPool) {
+			pool.shutdown();
 			try {
-				t.join();
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			} catch (InterruptedException e) {}
+		} else {
+			// Walkers that start from now on return straight away
+			synchronized (pauseLock) {
+				while (runningWalkers > 0) {
+					try {
+						pauseLock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						return;
+					}
+				}
+			}
+		}
+		threadFinishers.clear();
+	}
+	
+	/*
+	 * Finishers by profile for tasks running on thread. Only the thread
+	 * itself adds its entry, so two tasks never build finishers for it at once.
+	 */
+	private BuildFinisher[] threadFinishers(Thread thread) {
+		BuildFinisher[] finishers = threadFinishers.get(thread);
+		if (finishers == null) {
+			finishers = new BuildFinisher[numProfiles];
+			for (int k = 0; k < numProfiles; k++) {
+				finishers[k] = bfBuilders[k].build();
+			}
+			threadFinishers.put(thread, finishers);
+		}
+		return finishers;
+	}
+	
+	/**
+	 * Parks every walker between steps, and returns once all of them are
+	 *  parked. Walkers stay parked until resume() or stop() is called.
+	 */
+	public void pause() {
+		synchronized (pauseLock) {
+			paused = true;
+			while (runningWalkers > 0) {
+				try {
+					pauseLock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+	
+	public void resume() {
+		synchronized (pauseLock) {
+			paused = false;
+			pauseLock.notifyAll();
+		}
+	}
+	
+	public boolean isPaused() {
+		return paused;
+	}
+	
+	/**
+	 * @return true once every reachable build has been walked
+	 */
+	public boolean isFinished() {
+		return liveWalkers.isEmpty();
+	}
+	
+	/**
+	 * Writes the state of the walk: the position of every walker that has not
+	 *  finished, the visited builds and the counts. The walk must be paused or
+	 *  stopped. TopBuilds is written separately.
+	 */
+	public void writeCheckpoint(DataOutputStream out) throws IOException {
+		out.writeBoolean(canonical);
+		out.writeBoolean(equivalents != null);
+		out.writeLong(prunedNodes.sum());
+		out.writeLong(buildsEnumerated.sum());
+		
+		List<Task> walkers = new ArrayList<Task>(liveWalkers);
+		out.writeInt(walkers.size());
+		for (Task walker : walkers) {
+			walker.write(out);
+		}
+		
+		if (!canonical) {
+			visitedBuilds.writeTo(out);
+		}
+	}
+	
+	/**
+	 * Restores the state written by writeCheckpoint() into a walker that has
+	 *  not been started, with an empty visited builds set of the same kind.
+	 */
+	public void readCheckpoint(DataInputStream in) throws IOException {
+		if (in.readBoolean() != canonical) {
+			throw new IOException("Checkpoint was saved by a different kind of walk");
+		}
+		if (in.readBoolean() != (equivalents != null)) {
+			throw new IOException("Checkpoint was saved by a different kind of walk");
 		}
-		activeThreads.clear();
+		restored = true;
+		prunedNodes.add(in.readLong());
+		buildsEnumerated.add(in.readLong());
+		
+		int numWalkers = in.readInt();
+		for (int i = 0; i < numWalkers; i++) {
+			restoredWalkers.add(readTask(in));
+		}
+		
+		if (!canonical) {
+			visitedBuilds.readFrom(in);
+		}
+	}
+	
+	/**
+	 * Number of builds visited, or when enumerating canonically, the number
+	 *  of valid builds enumerated.
+	 */
+	public long getBuildsVisited() {
+		return canonical ? buildsEnumerated.sum() : visitedBuilds.size();
+	}
+	
+	public long getIterations() {
+		return getBuildsVisited();
+	}
+	
+	/**
+	 * Number of builds whose additions were skipped by branch-and-bound pruning.
+	 */
+	public long getNodesPruned() {
+		return prunedNodes.sum();
 	}
 	
-	public int getBuildsVisited() {
-		return visitedBuilds.size();
+	/**
+	 * Number of times a build was finished for a profile, or skipped because
+	 *  it could not enter that profile's TopBuilds. Neither is kept in a
+	 *  checkpoint, so they count from when the walk was built or restored.
+	 */
+	public long getFinishesRun() {
+		return finishesRun.sum();
 	}
 	
-	private boolean allAvailable(Iterable<Constellation> constellations, AffinityValues av) {
-		for (Constellation c : constellations) {
-			if (!(c.isAvailableWith(av))) return false;
+	public long getFinishesSkipped() {
+		return finishesSkipped.sum();
+	}
+	
+	/**
+	 * @return the fraction of finisher calls skipped, 0 before any build is finished
+	 */
+	public double getFinishSkipRatio() {
+		long run = finishesRun.sum();
+		long skipped = finishesSkipped.sum();
+		return run + skipped > 0 ? (double) skipped / (run + skipped) : 0.0;
+	}
+	
+	/**
+	 * Number of classes of interchangeable constellations the walk takes in
+	 *  order, 0 unless walking symmetrically.
+	 */
+	public int getEquivalenceClasses() {
+		return equivalents != null ? equivalents.numClasses() : 0;
+	}
+	
+	public long getVisitedBytesOnDisk() {
+		return canonical ? 0L : visitedBuilds.bytesOnDisk();
+	}
+	
+	private Task readTask(DataInputStream in) throws IOException {
+		int rootDepth = in.readInt();
+		int depth = in.readInt();
+		int[] path = new int[depth];
+		for (int d = 0; d < depth; d++) {
+			path[d] = checkStep(in.readInt());
+		}
+		
+		if (!in.readBoolean()) {
+			return canonical ? new CanonicalWalker(path) : new Walker(path);
+		}
+		int[] cursors = new int[depth - rootDepth + 1];
+		for (int d = 0; d < cursors.length; d++) {
+			cursors[d] = in.readInt();
+		}
+		return canonical
+				? new CanonicalWalker(rootDepth, path, cursors)
+				: new Walker(rootDepth, path, cursors);
+	}
+	
+	private int checkStep(int step) throws IOException {
+		if (step < 0 || step >= (canonical ? numOrdered : numConstellations)) {
+			throw new IOException("Checkpoint does not match the constellations");
+		}
+		return step;
+	}
+	
+	/**
+	 * Counts the calling walker as running, unless the walk has been stopped.
+	 *  Waits while the walk is paused.
+	 * 
+	 * @return false if the walk has been stopped
+	 */
+	private boolean enterRunning() {
+		synchronized (pauseLock) {
+			while (paused) {
+				try {
+					pauseLock.wait();
+				} catch (InterruptedException e) {}
+			}
+			if (!continueWalking) { return false; }
+			runningWalkers++;
+			return true;
+		}
+	}
+	
+	private void exitRunning() {
+		synchronized (pauseLock) {
+			runningWalkers--;
+			pauseLock.notifyAll();
+		}
+	}
+	
+	/**
+	 * Called by running walkers between steps, parks the walker while the
+	 *  walk is paused.
+	 */
+	private void safePoint() {
+		if (!paused) { return; }
+		synchronized (pauseLock) {
+			runningWalkers--;
+			pauseLock.notifyAll();
+			while (paused) {
+				try {
+					pauseLock.wait();
+				} catch (InterruptedException e) {}
+			}
+			runningWalkers++;
+		}
+	}
+	
+	/**
+	 * Whether the constellation at a position in canonicalOrder can be added
+	 *  to a build with the given stars, packed rewards and packed highest
+	 *  requirements: it fits under the star limit, the member before it in
+	 *  its class is in the build, and the rewards from its position on could
+	 *  still meet the requirements.
+	 */
+	private boolean canAdd(int position, ConstellationSet build, int buildStars,
+			long affinities, long need) {
+		if (buildStars + orderStars[position] > Controller.MAX_STARS) { return false; }
+		
+		// Equivalent constellations come in order, the one before is at an earlier position
+		int previous = previousEquivalent[canonicalOrder[position]];
+		if (previous >= 0 && !build.containsOrdinal(previous)) { return false; }
+		
+		long required = AffinityValues.max(need, orderRequirements[position]);
+		long reachable = AffinityValues.saturatedSum(affinities, suffixRewards[position]);
+		return AffinityValues.fulfills(reachable, required);
+	}
+	
+	/**
+	 * @return the constellations that can be added one at a time, starting
+	 *  from the empty build, if there were no star limit
+	 */
+	static List<Constellation> reachableConstellations(List<Constellation> constellations) {
+		List<Constellation> reachable = new ArrayList<Constellation>();
+		List<Constellation> unreached = new ArrayList<Constellation>(constellations);
+		AffinityValues affinities = new AffinityValues();
+		
+		boolean added = true;
+		while (added) {
+			added = false;
+			for (int i = 0; i < unreached.size(); i++) {
+				Constellation c = unreached.get(i);
+				if (c.isAvailableWith(affinities)) {
+					reachable.add(c);
+					affinities.add(c.getReward());
+					unreached.remove(i--);
+					added = true;
+				}
+			}
+		}
+		return reachable;
+	}
+	
+	/**
+	 * @return sums of the best star values, for 0 to MAX_STARS stars. Stars
+	 *  with no value are never counted.
+	 */
+	private static double[] bestStarSums(Collection<Double> starValues) {
+		List<Double> sorted = new ArrayList<Double>(starValues);
+		Collections.sort(sorted, Collections.reverseOrder());
+		
+		double[] sums = new double[Controller.MAX_STARS + 1];
+		for (int k = 1; k <= Controller.MAX_STARS; k++) {
+			double value = k <= sorted.size() ? Math.max(0.0, sorted.get(k - 1)) : 0.0;
+			sums[k] = sums[k - 1] + value;
 		}
-		return true;
+		return sums;
 	}
 }
@@ -44,6 +44,7 @@ public class ConstellationLoader {
 	public List<Constellation> loadConstellations(String workingDirectory) {
 		errors.clear();
 		List<Constellation> constellations = new ArrayList<Constellation>();
+		int numStars = 0;
 		
 		for(File baseDirectory : baseDirectories(workingDirectory)) {
 			File constellationDir = new File(baseDirectory, CONSTELLATION_DIR);
@@ -56,10 +57,13 @@ public class ConstellationLoader {
 				Constellation.Builder newCBuilder = 
 						loadConstellationBuilder(
 								baseDirectory,
-								new File(constellationDir, constellationPath));
+								new File(constellationDir, constellationPath),
+								numStars);
 				if(newCBuilder != null) {
 					newCBuilder.ordinal(constellations.size());
-					constellations.add(newCBuilder.build());
+					Constellation constellation = newCBuilder.build();
+					constellations.add(constellation);
+					numStars += constellation.numStars();
 				}
 			}
 		}
@@ -97,7 +101,12 @@ public class ConstellationLoader {
 		return baseDirs;
 	}
 	
-	private Constellation.Builder loadConstellationBuilder(File baseDir, File constellationFile) {
+	/**
+	 * @param firstStarOrdinal: ordinal of the constellation's head star. The
+	 *  other stars follow it in the order the file lists them.
+	 */
+	private Constellation.Builder loadConstellationBuilder(File baseDir, File constellationFile,
+			int firstStarOrdinal) {
 		List<Integer> rewardValues = new ArrayList<Integer>();
 		List<Affinity> rewardTypes = new ArrayList<Affinity>();
 		List<Integer> requirementValues = new ArrayList<Integer>();
@@ -165,6 +174,11 @@ public class ConstellationLoader {
 		}
 		constellationBuilder.requirement(requirement);
 		
+		// Number the stars densely across all constellations, so star data can be kept in arrays
+		for(int i = 0; i < starBuilders.size(); i++) {
+			starBuilders.get(i).ordinal(firstStarOrdinal + i);
+		}
+		
 		// Build stars in reverse to make the tree
 		for(int i = starBuilders.size()-1; i > 0; i--) {
 			Star star = starBuilders.get(i).build();
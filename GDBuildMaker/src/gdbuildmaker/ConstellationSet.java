@@ -0,0 +1,135 @@
+package gdbuildmaker;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of constellations stored as a fixed-width bitset over constellation
+ * ordinals. Adding, removing and checking membership only flip or test a bit,
+ * and the backing words can be handed to a VisitedBuildSet directly.
+ * Iteration is in ordinal order.
+ */
+public final class ConstellationSet extends AbstractSet<Constellation> {
+	private final Constellation[] byOrdinal;
+	private final long[] words;
+	private int size;
+
+	/**
+	 * @param byOrdinal: every constellation that may be put in the set, indexed by ordinal
+	 */
+	public ConstellationSet(Constellation[] byOrdinal) {
+		this.byOrdinal = byOrdinal;
+		this.words = new long[wordsFor(byOrdinal.length)];
+		this.size = 0;
+	}
+
+	/**
+	 * Number of long words needed to hold one bit for each of numConstellations.
+	 */
+	public static int wordsFor(int numConstellations) {
+		return Math.max(1, (numConstellations + 63) >>> 6);
+	}
+
+	/**
+	 * The live backing words of the set. Bit (ordinal & 63) of word (ordinal >>> 6)
+	 * is set when the constellation with that ordinal is in the set.
+	 */
+	long[] words() {
+		return words;
+	}
+
+	/**
+	 * Replaces the contents of the set with a build's bits, as returned by
+	 * words() of a set of the same width.
+	 */
+	void setWords(long[] bits) {
+		size = 0;
+		for (int i = 0; i < words.length; i++) {
+			words[i] = bits[i];
+			size += Long.bitCount(bits[i]);
+		}
+	}
+
+	public boolean add(Constellation c) {
+		int ordinal = c.getOrdinal();
+		long bit = 1L << ordinal;
+		int w = ordinal >>> 6;
+		if ((words[w] & bit) != 0) { return false; }
+		words[w] |= bit;
+		size++;
+		return true;
+	}
+
+	public boolean remove(Object o) {
+		if (!(o instanceof Constellation)) { return false; }
+		int ordinal = ((Constellation)o).getOrdinal();
+		long bit = 1L << ordinal;
+		int w = ordinal >>> 6;
+		if ((words[w] & bit) == 0) { return false; }
+		words[w] &= ~bit;
+		size--;
+		return true;
+	}
+
+	public boolean contains(Object o) {
+		if (!(o instanceof Constellation)) { return false; }
+		return containsOrdinal(((Constellation)o).getOrdinal());
+	}
+
+	public boolean containsOrdinal(int ordinal) {
+		return (words[ordinal >>> 6] & (1L << ordinal)) != 0;
+	}
+
+	public void clear() {
+		for (int i = 0; i < words.length; i++) {
+			words[i] = 0L;
+		}
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the lowest ordinal in the set that is at least fromOrdinal, or -1
+	 * if there is none.
+	 */
+	public int nextOrdinal(int fromOrdinal) {
+		int w = fromOrdinal >>> 6;
+		if (w >= words.length) { return -1; }
+		long word = words[w] & (-1L << fromOrdinal);
+		while (true) {
+			if (word != 0) {
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++w >= words.length) { return -1; }
+			word = words[w];
+		}
+	}
+
+	public Iterator<Constellation> iterator() {
+		return new Iterator<Constellation>() {
+			private int next = nextOrdinal(0);
+			private int last = -1;
+
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			public Constellation next() {
+				if (next < 0) { throw new NoSuchElementException(); }
+				last = next;
+				next = nextOrdinal(next + 1);
+				return byOrdinal[last];
+			}
+
+			public void remove() {
+				if (last < 0) { throw new IllegalStateException(); }
+				ConstellationSet.this.remove(byOrdinal[last]);
+				last = -1;
+			}
+		};
+	}
+}
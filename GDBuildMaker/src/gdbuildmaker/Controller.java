@@ -1,24 +1,98 @@
 package gdbuildmaker;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 public class Controller {
 
 	public static final int MAX_STARS = 55;
-	public static final int BUILDWALKER_THREADS = 2;
+	public static final int BUILDWALKER_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final long SPILL_HOT_BUILDS = 8_000_000L;
+	
+	private static final int CHECKPOINT_MAGIC = 0x47444257; // "GDBW"
+	private static final int CHECKPOINT_VERSION = 5;
+	
+	private static final byte STORE_EXACT = 0;
+	private static final byte STORE_SPILLING = 1;
+	private static final byte STORE_FILTER = 2;
+	private static final byte STORE_NONE = 3;
 	
 	private List<Constellation> constellations;
 	
 	private ConstellationLoader loader;
-	private BuildWalker buildWalker;
-	private TopBuilds topBuilds;
+	private BuildSearch search;
+	private BuildWalker buildWalker; // the current search if it is a walk, otherwise null
+	private VisitedBuilds visitedBuilds;
+	private List<TopBuilds> topBuilds; // by profile
+	
+	// Directory to spill visited builds into, or null to keep them all on the heap
+	private File spillDirectory;
+	
+	// Kind of search to run
+	private BuildSearch.Strategy strategy;
+	
+	// Number of threads each run searches with. On a shared pool, only the
+	// chains of annealing are capped by it, since they never end.
+	private int threads;
+	
+	// Number of top builds each run keeps for each profile
+	private int topBuildsSize;
+	private ForkJoinPool pool;
+	
+	// Skip walking additions that can't lead into the top builds
+	private boolean pruning;
+	
+	// Enumerate each valid build once instead of walking, with no visited builds
+	private boolean canonical;
+	
+	// Walk interchangeable constellations in one order only
+	private boolean symmetric;
+	
+	// Approximate visited builds filter settings, unused if filterBytes is 0
+	private long filterBytes;
+	private double filterFalsePositiveRate;
+	
+	// Effect weights of each profile of the current run, saved in its checkpoints
+	private List<Map<String, Double>> effectWeights;
+	
+	// File the current run is periodically checkpointed to, or null
+	private File checkpointFile;
+	private long checkpointIntervalMillis;
+	private ScheduledExecutorService checkpointer;
 	
 	public Controller() {
-		constellations = new ArrayList<Constellation>();
+		this(new ArrayList<Constellation>());
+	}
+	
+	/**
+	 * Creates a controller that runs over constellations that are already
+	 *  loaded, so several controllers can share one loaded dataset.
+	 */
+	public Controller(List<Constellation> constellations) {
+		this.constellations = constellations;
+		strategy = BuildSearch.Strategy.WALK;
+		threads = BUILDWALKER_THREADS;
+		topBuildsSize = TopBuilds.DEFAULT_SIZE;
 	}
 	
 	public void loadConstellations(String dir) {
@@ -49,38 +123,517 @@ public class Controller {
 		return effects;
 	}
 
+	/**
+	 * Makes runs started after this call spill visited builds into segment
+	 *  files in the given directory. Pass null to keep visited builds on the heap.
+	 */
+	public void setSpillDirectory(File spillDirectory) {
+		this.spillDirectory = spillDirectory;
+	}
+	
+	/**
+	 * Makes runs started after this call record visited builds in a Bloom
+	 *  filter using filterBytes of heap, sized so the false positive rate is
+	 *  falsePositiveRate at capacity. Takes precedence over a spill directory.
+	 *  Pass 0 bytes to record visited builds exactly.
+	 */
+	public void setVisitedFilter(long filterBytes, double falsePositiveRate) {
+		this.filterBytes = filterBytes;
+		this.filterFalsePositiveRate = falsePositiveRate;
+	}
+	
+	/**
+	 * Sets the kind of search for runs started after this call. Only walks
+	 *  record visited builds, and can be paused and checkpointed.
+	 */
+	public void setStrategy(BuildSearch.Strategy strategy) {
+		this.strategy = strategy;
+	}
+	
+	/**
+	 * Sets the number of threads runs started after this call search with.
+	 *  Runs on a shared pool (see setPool()) use the pool's threads instead,
+	 *  except that annealing runs at most this many chains on it.
+	 */
+	public void setThreads(int threads) {
+		this.threads = threads;
+	}
+	
+	/**
+	 * Sets the number of top builds runs started after this call keep for
+	 *  each profile. A resumed checkpoint keeps the number it was saved with.
+	 */
+	public void setTopBuildsSize(int topBuildsSize) {
+		if (topBuildsSize < 1) {
+			throw new IllegalArgumentException("Must keep at least one top build");
+		}
+		this.topBuildsSize = topBuildsSize;
+	}
+	
+	/**
+	 * Makes runs started after this call search on a pool shared with other
+	 *  controllers, instead of on a pool of their own. Pass null to go back to
+	 *  a pool per run. Runs on a shared pool should not be paused, since
+	 *  paused walkers hold on to the pool's threads.
+	 */
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+	
+	/**
+	 * Enables branch-and-bound pruning for runs started after this call.
+	 *  Only canonical walks can be pruned (see BuildWalker.Builder.pruning()),
+	 *  and start() refuses a pruned walk that is not canonical.
+	 */
+	public void setPruning(boolean pruning) {
+		this.pruning = pruning;
+	}
+	
+	/**
+	 * Makes runs started after this call enumerate builds in a canonical
+	 *  order, which records no visited builds.
+	 */
+	public void setCanonical(boolean canonical) {
+		this.canonical = canonical;
+	}
+	
+	/**
+	 * Makes walks started after this call take interchangeable constellations
+	 *  in one order only, and expand the top builds back to every order.
+	 */
+	public void setSymmetric(boolean symmetric) {
+		this.symmetric = symmetric;
+	}
+	
+	/**
+	 * Makes runs started after this call save a checkpoint to checkpointFile
+	 *  every intervalMillis, and when they are stopped. Pass null to disable.
+	 */
+	public void setCheckpoint(File checkpointFile, long intervalMillis) {
+		this.checkpointFile = checkpointFile;
+		this.checkpointIntervalMillis = intervalMillis;
+	}
+	
 	public void start(Map<String, Double> effectWeights) {
-		final Map<Constellation, Double> constellationValues =
-				new HashMap<Constellation, Double>();
-		for (Constellation c : constellations) {
-			constellationValues.put(c, constellationValue(c, effectWeights));
+		start(Collections.singletonList(effectWeights));
+	}
+	
+	/**
+	 * Starts a run that finds the top builds of several weight profiles at
+	 *  once. A walk enumerates builds once and scores each build under every
+	 *  profile, other searches only take a single profile.
+	 */
+	public void start(List<Map<String, Double>> profiles) {
+		if (profiles.size() != 1 && strategy != BuildSearch.Strategy.WALK) {
+			throw new IllegalArgumentException(strategy + " searches a single profile");
 		}
-		
-		final Map<Star, Double> starValues = new HashMap<Star, Double>();
-		for (Constellation c : constellations) {
-			for (Star s : c.getStars()) {
-				starValues.put(s, starValue(s, effectWeights));
+		if (pruning && strategy == BuildSearch.Strategy.WALK && !canonical) {
+			throw new IllegalArgumentException("Branch-and-bound pruning needs a canonical walk");
+		}
+		try {
+			startRun(profiles, null);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/**
+	 * Continues the run saved in a checkpoint, with the settings it was saved
+	 *  with. The loaded constellations must be the ones the run was started with.
+	 */
+	public void resumeFrom(File checkpoint) throws IOException {
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(checkpoint)))) {
+			if (in.readInt() != CHECKPOINT_MAGIC) {
+				throw new IOException(checkpoint + " is not a build walker checkpoint");
+			}
+			if (in.readInt() != CHECKPOINT_VERSION) {
+				throw new IOException(checkpoint + " was saved by a different version");
+			}
+			if (in.readLong() != datasetFingerprint(constellations)) {
+				throw new IOException(checkpoint + " was saved with different constellations");
+			}
+			
+			List<Map<String, Double>> profiles = new ArrayList<Map<String, Double>>();
+			int numProfiles = in.readInt();
+			for (int k = 0; k < numProfiles; k++) {
+				Map<String, Double> weights = new HashMap<String, Double>();
+				int numWeights = in.readInt();
+				for (int i = 0; i < numWeights; i++) {
+					String effect = in.readUTF();
+					weights.put(effect, in.readDouble());
+				}
+				profiles.add(weights);
+			}
+			
+			filterBytes = 0;
+			spillDirectory = null;
+			byte store = in.readByte();
+			if (store == STORE_FILTER) {
+				filterBytes = in.readLong();
+				filterFalsePositiveRate = in.readDouble();
+			} else if (store == STORE_SPILLING) {
+				spillDirectory = new File(in.readUTF());
+			}
+			canonical = store == STORE_NONE;
+			pruning = in.readBoolean();
+			symmetric = in.readBoolean();
+			topBuildsSize = in.readInt();
+			if (topBuildsSize < 1) {
+				throw new IOException(checkpoint + " is corrupt");
+			}
+			strategy = BuildSearch.Strategy.WALK;
+			
+			startRun(profiles, in);
+		}
+	}
+	
+	/**
+	 * Pauses the current run, writes its state to file, and resumes it
+	 *  unless it was already paused. The file is replaced atomically.
+	 */
+	public void saveCheckpoint(File file) throws IOException {
+		if (buildWalker == null) {
+			throw new IllegalStateException("Only walks can be checkpointed");
+		}
+		boolean wasPaused = buildWalker.isPaused();
+		buildWalker.pause();
+		try {
+			writeCheckpoint(file);
+		} finally {
+			if (!wasPaused) {
+				buildWalker.resume();
 			}
 		}
+	}
+	
+	/**
+	 * Parks the walkers of the current run between steps.
+	 */
+	public void pause() {
+		if (buildWalker != null) {
+			buildWalker.pause();
+		}
+	}
+	
+	public void resume() {
+		if (buildWalker != null) {
+			buildWalker.resume();
+		}
+	}
+	
+	public boolean isPaused() {
+		return buildWalker != null && buildWalker.isPaused();
+	}
+	
+	private void startRun(List<Map<String, Double>> profiles, DataInputStream checkpoint)
+			throws IOException {
+		effectWeights = new ArrayList<Map<String, Double>>();
+		List<Map<Constellation, Double>> constellationValues =
+				new ArrayList<Map<Constellation, Double>>();
+		List<Map<Star, Double>> starValues = new ArrayList<Map<Star, Double>>();
+		topBuilds = new ArrayList<TopBuilds>();
+		for (Map<String, Double> weights : profiles) {
+			effectWeights.add(new HashMap<String, Double>(weights));
+			
+			constellationValues.add(constellationValues(constellations, weights));
+			starValues.add(starValues(constellations, weights));
+			
+			topBuilds.add(new TopBuilds(topBuildsSize));
+		}
 
-		topBuilds = new TopBuilds();
-		buildWalker = new BuildWalker(constellationValues, starValues, topBuilds);
-		buildWalker.start(BUILDWALKER_THREADS);
+		// Release the previous run's visited builds
+		if (visitedBuilds != null) {
+			visitedBuilds.close();
+		}
+		
+		int width = ConstellationSet.wordsFor(constellations.size());
+		if (strategy != BuildSearch.Strategy.WALK || canonical) {
+			visitedBuilds = null;
+		} else if (filterBytes > 0) {
+			visitedBuilds = new BloomVisitedBuilds(width, filterBytes, filterFalsePositiveRate);
+		} else if (spillDirectory != null) {
+			visitedBuilds = new SpillingVisitedBuilds(width, SPILL_HOT_BUILDS, spillDirectory);
+		} else {
+			visitedBuilds = new VisitedBuildSet(width);
+		}
+
+		buildWalker = null;
+		if (strategy == BuildSearch.Strategy.BEAM) {
+			search = new BeamSearch(
+					constellationValues.get(0), starValues.get(0), topBuilds.get(0));
+		} else if (strategy == BuildSearch.Strategy.ANNEALING) {
+			AnnealingSearch annealing = new AnnealingSearch(
+					constellationValues.get(0), starValues.get(0), topBuilds.get(0));
+			annealing.setMaxChains(threads);
+			search = annealing;
+		} else if (strategy == BuildSearch.Strategy.EXACT) {
+			search = new ExactSolver(
+					constellationValues.get(0), starValues.get(0), topBuilds.get(0));
+		} else {
+			buildWalker = new BuildWalker.Builder(constellationValues, starValues, topBuilds)
+					.visitedBuilds(visitedBuilds)
+					.pruning(pruning)
+					.canonical(canonical)
+					.symmetric(symmetric)
+					.build();
+			search = buildWalker;
+		}
+		
+		if (checkpoint != null) {
+			Constellation[] byOrdinal = new Constellation[constellations.size()];
+			for (Constellation c : constellations) {
+				byOrdinal[c.getOrdinal()] = c;
+			}
+			for (TopBuilds profileBuilds : topBuilds) {
+				profileBuilds.readFrom(checkpoint, byOrdinal);
+			}
+			buildWalker.readCheckpoint(checkpoint);
+		}
+		if (pool != null) {
+			search.start(pool);
+		} else {
+			search.start(threads);
+		}
+		
+		if (checkpointFile != null && buildWalker != null) {
+			startCheckpointer();
+		}
 	}
 	
 	public void stop() {
-		buildWalker.stop();
+		if (checkpointer != null) {
+			checkpointer.shutdown();
+			try {
+				checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {}
+			checkpointer = null;
+		}
+		
+		search.stop();
+		
+		if (checkpointFile != null && buildWalker != null) {
+			try {
+				writeCheckpoint(checkpointFile);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	/**
+	 * @return true once the current run has searched everything it will
+	 */
+	public boolean isFinished() {
+		return search.isFinished();
+	}
+	
+	/**
+	 * Number of builds visited by a walk, or evaluated by another search.
+	 */
+	public Long getBuildsVisited() {
+		return search.getIterations();
+	}
+	
+	public Long getNodesPruned() {
+		return buildWalker != null ? buildWalker.getNodesPruned() : 0L;
 	}
 	
-	public Integer getBuildsVisited() {
-		return buildWalker.getBuildsVisited();
+	/**
+	 * @return the fraction of finisher calls a walk skipped, see BuildWalker
+	 */
+	public Double getFinishSkipRatio() {
+		return buildWalker != null ? buildWalker.getFinishSkipRatio() : 0.0;
+	}
+	
+	public Long getVisitedBytesOnDisk() {
+		return buildWalker != null ? buildWalker.getVisitedBytesOnDisk() : 0L;
+	}
+	
+	/**
+	 * @return true if the current run is a walk, which can be paused and
+	 *  checkpointed
+	 */
+	public boolean isWalking() {
+		return buildWalker != null;
+	}
+	
+	/**
+	 * @return true if the current run enumerates builds canonically, without
+	 *  recording visited builds
+	 */
+	public boolean isCanonicalMode() {
+		return buildWalker != null && visitedBuilds == null;
+	}
+	
+	/**
+	 * @return true if the current run spills visited builds to disk
+	 */
+	public boolean isSpillingMode() {
+		return visitedBuilds instanceof SpillingVisitedBuilds;
+	}
+	
+	/**
+	 * @return true if the current run records visited builds approximately
+	 */
+	public boolean isVisitedFilterMode() {
+		return visitedBuilds instanceof BloomVisitedBuilds;
+	}
+	
+	public Long getVisitedFilterCapacity() {
+		return ((BloomVisitedBuilds)visitedBuilds).capacity();
+	}
+	
+	public Double getVisitedFilterFillRatio() {
+		return ((BloomVisitedBuilds)visitedBuilds).fillRatio();
+	}
+	
+	public Double getVisitedFilterFalsePositiveRate() {
+		return ((BloomVisitedBuilds)visitedBuilds).falsePositiveRate();
 	}
 	
 	public List<Build> getTopBuilds() {
-		return topBuilds.getBuilds();
+		return getTopBuilds(0);
+	}
+	
+	/**
+	 * @return the top builds of one of the profiles the current run was
+	 *  started with, in the order they were given
+	 */
+	public List<Build> getTopBuilds(int profile) {
+		return topBuilds.get(profile).getBuilds();
+	}
+	
+	public int getNumProfiles() {
+		return topBuilds.size();
+	}
+	
+	private void startCheckpointer() {
+		if (checkpointer != null) {
+			checkpointer.shutdownNow();
+		}
+		checkpointer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread t = new Thread(runnable, "build-walker-checkpointer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		
+		final BuildWalker walker = buildWalker;
+		checkpointer.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				if (walker.isFinished()) { return; }
+				try {
+					saveCheckpoint(checkpointFile);
+				} catch (IOException e) {
+					System.err.println("Failed to save checkpoint: " + e.getMessage());
+				}
+			}
+		}, checkpointIntervalMillis, checkpointIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+	
+	/**
+	 * Writes the current run to a temporary file beside file, then moves it
+	 *  into place. The walk must be paused or stopped.
+	 */
+	private void writeCheckpoint(File file) throws IOException {
+		File temp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(
+				new BufferedOutputStream(new FileOutputStream(temp)))) {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeInt(CHECKPOINT_VERSION);
+			out.writeLong(datasetFingerprint(constellations));
+			
+			out.writeInt(effectWeights.size());
+			for (Map<String, Double> weights : effectWeights) {
+				out.writeInt(weights.size());
+				for (Map.Entry<String, Double> weight : weights.entrySet()) {
+					out.writeUTF(weight.getKey());
+					out.writeDouble(weight.getValue());
+				}
+			}
+			
+			if (visitedBuilds == null) {
+				out.writeByte(STORE_NONE);
+			} else if (visitedBuilds instanceof BloomVisitedBuilds) {
+				out.writeByte(STORE_FILTER);
+				out.writeLong(filterBytes);
+				out.writeDouble(filterFalsePositiveRate);
+			} else if (visitedBuilds instanceof SpillingVisitedBuilds) {
+				out.writeByte(STORE_SPILLING);
+				out.writeUTF(spillDirectory.getPath());
+			} else {
+				out.writeByte(STORE_EXACT);
+			}
+			out.writeBoolean(pruning);
+			out.writeBoolean(symmetric);
+			out.writeInt(topBuilds.get(0).getMaxBuilds());
+			
+			for (TopBuilds profileBuilds : topBuilds) {
+				profileBuilds.writeTo(out);
+			}
+			buildWalker.writeCheckpoint(out);
+		}
+		Files.move(temp.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Hash of everything about the constellations that a walk depends on, so
+	 *  a checkpoint is only resumed, and a distributed walk only shared,
+	 *  against the same data.
+	 */
+	static long datasetFingerprint(List<Constellation> constellations) {
+		StringBuilder data = new StringBuilder();
+		for (Constellation c : constellations) {
+			data.append(c.getOrdinal()).append(':').append(c.getName())
+				.append(':').append(c.numStars());
+			for (Affinity a : Affinity.values()) {
+				data.append(':').append(c.getRequirement().getValue(a))
+					.append('/').append(c.getReward().getValue(a));
+			}
+			for (Star s : c.getStars()) {
+				data.append(':').append(new TreeMap<String, Double>(s.getEffects()));
+			}
+			data.append('\n');
+		}
+		
+		// 64-bit FNV-1a
+		long hash = 0xCBF29CE484222325L;
+		for (int i = 0; i < data.length(); i++) {
+			hash = (hash ^ data.charAt(i)) * 0x100000001B3L;
+		}
+		return hash;
+	}
+	
+	/**
+	 * @return the value of each constellation under the effect weights
+	 */
+	static Map<Constellation, Double> constellationValues(List<Constellation> constellations,
+			Map<String, Double> effectWeights) {
+		Map<Constellation, Double> values = new HashMap<Constellation, Double>();
+		for (Constellation c : constellations) {
+			values.put(c, constellationValue(c, effectWeights));
+		}
+		return values;
+	}
+	
+	/**
+	 * @return the value of each star of the constellations under the effect weights
+	 */
+	static Map<Star, Double> starValues(List<Constellation> constellations,
+			Map<String, Double> effectWeights) {
+		Map<Star, Double> values = new HashMap<Star, Double>();
+		for (Constellation c : constellations) {
+			for (Star s : c.getStars()) {
+				values.put(s, starValue(s, effectWeights));
+			}
+		}
+		return values;
 	}
 	
-	private Double starValue(Star star, Map<String, Double> effectWeights) {
+	private static Double starValue(Star star, Map<String, Double> effectWeights) {
 		double value = 0.0;
 		
 		for (String effect : effectWeights.keySet()) {
@@ -90,7 +643,7 @@ public class Controller {
 		return value;
 	}
 	
-	private Double constellationValue(Constellation constellation, Map<String, Double> effectWeights) {
+	private static Double constellationValue(Constellation constellation, Map<String, Double> effectWeights) {
 		double value = 0.0;
 		
 		for (Star star : constellation.getStars()) {
@@ -0,0 +1,54 @@
+package gdbuildmaker;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads and writes effect weight profiles, one "effect,weight" pair per line.
+ * Lines that don't hold a pair with a numeric weight are skipped.
+ */
+public final class EffectWeights {
+	private EffectWeights() {}
+
+	/**
+	 * @return the weights in the order they appear in the file. If an effect
+	 *  appears more than once, its last weight is kept.
+	 */
+	public static Map<String, Double> read(File file) throws IOException {
+		try (Reader reader = new FileReader(file)) {
+			return read(reader);
+		}
+	}
+
+	/**
+	 * Reads weights in the same format as read(File), leaving the reader open.
+	 */
+	public static Map<String, Double> read(Reader reader) throws IOException {
+		Map<String, Double> weights = new LinkedHashMap<String, Double>();
+		BufferedReader br = new BufferedReader(reader);
+		String line;
+		while ((line = br.readLine()) != null) {
+			int comma = line.lastIndexOf(',');
+			if (comma < 0) continue;
+			try {
+				String effect = line.substring(0, comma);
+				weights.put(effect, Double.parseDouble(line.substring(comma + 1).trim()));
+			} catch (NumberFormatException e) {}
+		}
+		return weights;
+	}
+
+	public static void write(File file, Map<String, Double> weights) throws IOException {
+		try (PrintWriter writer = new PrintWriter(file)) {
+			for (Map.Entry<String, Double> weight : weights.entrySet()) {
+				writer.println(weight.getKey() + "," + weight.getValue());
+			}
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package gdbuildmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Classes of constellations that are interchangeable in a run: they have the
+ * same requirement, reward and star tree, and matching stars have the same
+ * value under every profile. Swapping members of a class for each other in a
+ * build gives a build that is just as valid and just as valuable, so a walk
+ * only needs the builds that use each class's members in order, and can
+ * recover the rest with forEachEquivalent().
+ *
+ * Members of a class are ordered by ordinal. A build is in order when it
+ * contains a member only if it also contains the member before it.
+ */
+public class EquivalentConstellations {
+	/**
+	 * Receives the builds equivalent to a build.
+	 */
+	public interface Consumer {
+		/**
+		 * @return false to stop receiving builds
+		 */
+		boolean accept(List<Constellation> constellations, Map<Constellation, Integer> partials);
+	}
+
+	private final Constellation[][] classes;
+	private final int[] classOf; // class index by ordinal, -1 for a constellation with no equivalent
+	private final int[] previous; // ordinal of the member before, by ordinal, or -1
+	private final int[] next; // ordinal of the member after, by ordinal, or -1
+
+	/**
+	 * @param constellations: every constellation of the run
+	 * @param constellationValues: the constellation values of each profile of the run
+	 * @param starValues: the star values of each profile of the run
+	 */
+	public EquivalentConstellations(Collection<Constellation> constellations,
+			List<Map<Constellation, Double>> constellationValues,
+			List<Map<Star, Double>> starValues) {
+		Map<String, List<Constellation>> bySignature = new LinkedHashMap<String, List<Constellation>>();
+		int size = 0;
+		for (Constellation c : constellations) {
+			String signature = signature(c, constellationValues, starValues);
+			List<Constellation> members = bySignature.get(signature);
+			if (members == null) {
+				members = new ArrayList<Constellation>();
+				bySignature.put(signature, members);
+			}
+			members.add(c);
+			size = Math.max(size, c.getOrdinal() + 1);
+		}
+
+		List<Constellation[]> found = new ArrayList<Constellation[]>();
+		classOf = new int[size];
+		previous = new int[size];
+		next = new int[size];
+		Arrays.fill(classOf, -1);
+		Arrays.fill(previous, -1);
+		Arrays.fill(next, -1);
+		for (List<Constellation> members : bySignature.values()) {
+			if (members.size() < 2) continue;
+
+			Collections.sort(members, new Comparator<Constellation>() {
+				public int compare(Constellation c1, Constellation c2) {
+					return c1.getOrdinal() - c2.getOrdinal();
+				}
+			});
+			for (int i = 0; i < members.size(); i++) {
+				int ordinal = members.get(i).getOrdinal();
+				classOf[ordinal] = found.size();
+				if (i > 0) {
+					previous[ordinal] = members.get(i - 1).getOrdinal();
+				}
+				if (i < members.size() - 1) {
+					next[ordinal] = members.get(i + 1).getOrdinal();
+				}
+			}
+			found.add(members.toArray(new Constellation[members.size()]));
+		}
+		classes = found.toArray(new Constellation[found.size()][]);
+	}
+
+	/**
+	 * @return the number of classes with more than one member
+	 */
+	public int numClasses() {
+		return classes.length;
+	}
+
+	/**
+	 * @return the ordinal of the member of c's class before c, or -1 if c is
+	 *  first or has no equivalent
+	 */
+	public int previous(Constellation c) {
+		return previous[c.getOrdinal()];
+	}
+
+	/**
+	 * @return the ordinal of the member of c's class after c, or -1 if c is
+	 *  last or has no equivalent
+	 */
+	public int next(Constellation c) {
+		return next[c.getOrdinal()];
+	}
+
+	/**
+	 * Gives every distinct build reached by swapping members of a class for
+	 *  each other in a build, the build itself included, to the consumer until
+	 *  it returns false. For each choice of which members of a class are in
+	 *  the build, the partials on the class's other members keep their order
+	 *  and move onto the members left out, so each set of constellations is
+	 *  given once, as a walk over every member would have finished it.
+	 */
+	public void forEachEquivalent(Collection<Constellation> constellations,
+			Map<Constellation, Integer> partials, Consumer consumer) {
+		// Role of each member of the classes the build touches, 0 for unused,
+		// -1 for whole and the number of stars for a partial
+		Map<Integer, int[]> roles = new LinkedHashMap<Integer, int[]>();
+		for (Constellation c : constellations) {
+			roleOf(roles, c)[indexInClass(c)] = -1;
+		}
+		for (Map.Entry<Constellation, Integer> partial : partials.entrySet()) {
+			roleOf(roles, partial.getKey())[indexInClass(partial.getKey())] = partial.getValue();
+		}
+
+		List<Constellation> fixed = new ArrayList<Constellation>();
+		Map<Constellation, Integer> fixedPartials = new HashMap<Constellation, Integer>();
+		for (Constellation c : constellations) {
+			if (classOf[c.getOrdinal()] < 0) {
+				fixed.add(c);
+			}
+		}
+		for (Map.Entry<Constellation, Integer> partial : partials.entrySet()) {
+			if (classOf[partial.getKey().getOrdinal()] < 0) {
+				fixedPartials.put(partial.getKey(), partial.getValue());
+			}
+		}
+
+		// Each class's whole members are arranged as -1s among 0s, and the roles
+		// of its other members follow on the 0s in order
+		int[] touched = new int[roles.size()];
+		int[][] arrangements = new int[roles.size()][];
+		int[][] otherRoles = new int[roles.size()][];
+		int t = 0;
+		for (Map.Entry<Integer, int[]> entry : roles.entrySet()) {
+			int[] classRoles = entry.getValue();
+			int whole = 0;
+			for (int role : classRoles) {
+				if (role < 0) whole++;
+			}
+			touched[t] = entry.getKey();
+			arrangements[t] = new int[classRoles.length];
+			Arrays.fill(arrangements[t], 0, whole, -1);
+			otherRoles[t] = new int[classRoles.length - whole];
+			int o = 0;
+			for (int role : classRoles) {
+				if (role >= 0) otherRoles[t][o++] = role;
+			}
+			t++;
+		}
+
+		// Step through the arrangements of every class like an odometer
+		while (true) {
+			List<Constellation> build = new ArrayList<Constellation>(fixed);
+			Map<Constellation, Integer> buildPartials = new HashMap<Constellation, Integer>(fixedPartials);
+			for (int i = 0; i < touched.length; i++) {
+				Constellation[] members = classes[touched[i]];
+				int o = 0;
+				for (int m = 0; m < members.length; m++) {
+					int role = arrangements[i][m] < 0 ? -1 : otherRoles[i][o++];
+					if (role < 0) {
+						build.add(members[m]);
+					} else if (role > 0) {
+						buildPartials.put(members[m], role);
+					}
+				}
+			}
+			if (!consumer.accept(build, buildPartials)) { return; }
+
+			int i = 0;
+			while (i < touched.length && !nextPermutation(arrangements[i])) {
+				// nextPermutation() wrapped this class around to its first arrangement
+				i++;
+			}
+			if (i == touched.length) { return; }
+		}
+	}
+
+	private int[] roleOf(Map<Integer, int[]> roles, Constellation c) {
+		int cls = classOf[c.getOrdinal()];
+		if (cls < 0) { return new int[1]; }
+		int[] classRoles = roles.get(cls);
+		if (classRoles == null) {
+			classRoles = new int[classes[cls].length];
+			roles.put(cls, classRoles);
+		}
+		return classRoles;
+	}
+
+	private int indexInClass(Constellation c) {
+		int cls = classOf[c.getOrdinal()];
+		if (cls < 0) { return 0; }
+		Constellation[] members = classes[cls];
+		for (int m = 0; m < members.length; m++) {
+			if (members[m] == c) { return m; }
+		}
+		throw new IllegalArgumentException(c + " is not in its class");
+	}
+
+	/*
+	 * Rearranges values into the next greater permutation, or if it is the
+	 * greatest, into the smallest one.
+	 *
+	 * @return false if values wrapped around to the smallest permutation
+	 */
+	private static boolean nextPermutation(int[] values) {
+		int i = values.length - 2;
+		while (i >= 0 && values[i] >= values[i + 1]) {
+			i--;
+		}
+		if (i >= 0) {
+			int j = values.length - 1;
+			while (values[j] <= values[i]) {
+				j--;
+			}
+			swap(values, i, j);
+		}
+		for (int l = i + 1, r = values.length - 1; l < r; l++, r--) {
+			swap(values, l, r);
+		}
+		return i >= 0;
+	}
+
+	private static void swap(int[] values, int i, int j) {
+		int tmp = values[i];
+		values[i] = values[j];
+		values[j] = tmp;
+	}
+
+	/*
+	 * Everything about a constellation that a build's validity and value
+	 * depend on. Children's signatures are sorted, since the finisher does
+	 * not depend on the order of a star's children.
+	 */
+	private static String signature(Constellation c,
+			List<Map<Constellation, Double>> constellationValues, List<Map<Star, Double>> starValues) {
+		StringBuilder signature = new StringBuilder();
+		signature.append(c.getRequirement().packed()).append('/')
+			.append(c.getReward().packed()).append('/')
+			.append(c.numStars()).append('/');
+		for (Map<Constellation, Double> values : constellationValues) {
+			signature.append(Double.doubleToLongBits(values.get(c))).append(',');
+		}
+		signature.append(starSignature(c.headStar(), starValues));
+		return signature.toString();
+	}
+
+	private static String starSignature(Star star, List<Map<Star, Double>> starValues) {
+		StringBuilder signature = new StringBuilder("(");
+		for (Map<Star, Double> values : starValues) {
+			signature.append(Double.doubleToLongBits(values.get(star))).append(',');
+		}
+		List<String> children = new ArrayList<String>();
+		for (Star child : star.getChildren()) {
+			children.add(starSignature(child, starValues));
+		}
+		Collections.sort(children);
+		for (String child : children) {
+			signature.append(child);
+		}
+		return signature.append(')').toString();
+	}
+}
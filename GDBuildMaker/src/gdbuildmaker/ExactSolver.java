@@ -0,0 +1,428 @@
+package gdbuildmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Finds the topK best builds exactly, by dynamic programming over the
+ * constellations one at a time. Whether a build is valid depends only on its
+ * affinity totals, the requirements of its constellations and its stars, so
+ * partial solutions with the same affinity state are interchangeable apart
+ * from their stars and value.
+ *
+ * The state of a partial solution is its affinity totals, capped at the
+ * highest requirement of each affinity, and for each affinity the highest
+ * requirement it does not meet yet, or zero once it is met. Totals never
+ * fall, so a met requirement stays met. Each constellation is skipped, taken
+ * whole, or taken partially with any number of its stars, without its reward.
+ * For each state only entries that are not dominated by topK others with no
+ * more stars and no less value are kept, and entries that can't reach the
+ * topK even with the best remaining stars are dropped.
+ *
+ * Partial constellations are valued exactly, by the best connected set of
+ * stars from the head star, so found builds can be worth more than the same
+ * constellations finished by BuildFinisher.
+ */
+public class ExactSolver extends AbstractBuildSearch {
+	public static final int DEFAULT_TOP_K = 10;
+	
+	// Entries expanded by a single task
+	private static final int EXPAND_CHUNK = 512;
+	
+	private static final Affinity[] AFFINITIES = Affinity.values();
+	private static final int NUM_AFFINITIES = AFFINITIES.length;
+	
+	/*
+	 * A partial solution, as its last choice and the solution it was made from
+	 */
+	private static final class Entry {
+		private final double value;
+		private final int stars;
+		private final Entry parent;
+		private final int item; // position of the chosen constellation in items
+		private final int itemStars; // stars taken from it
+		
+		private Entry(double value, int stars, Entry parent, int item, int itemStars) {
+			this.value = value;
+			this.stars = stars;
+			this.parent = parent;
+			this.item = item;
+			this.itemStars = itemStars;
+		}
+	}
+	
+	/*
+	 * The entries of one affinity state, sorted by stars and then by highest value
+	 */
+	private final class Bucket {
+		private final int[] totals;
+		private final int[] needs;
+		private final List<Entry> entries;
+		
+		private Bucket(int[] totals, int[] needs) {
+			this.totals = totals;
+			this.needs = needs;
+			this.entries = new ArrayList<Entry>();
+		}
+		
+		private boolean isValid() {
+			for (int a = 0; a < NUM_AFFINITIES; a++) {
+				if (needs[a] != 0) { return false; }
+			}
+			return true;
+		}
+		
+		/**
+		 * Adds the entry unless topK entries dominate it, and drops entries
+		 *  it leaves dominated by topK others.
+		 */
+		private synchronized boolean offer(Entry entry) {
+			if (dominators(entry) >= topK) { return false; }
+			
+			int i = 0;
+			while (i < entries.size() && entries.get(i).stars < entry.stars) { i++; }
+			while (i < entries.size() && entries.get(i).stars == entry.stars
+					&& entries.get(i).value >= entry.value) { i++; }
+			entries.add(i, entry);
+			
+			for (int j = entries.size() - 1; j > i; j--) {
+				Entry other = entries.get(j);
+				if (other.value <= entry.value && dominators(other) > topK) {
+					entries.remove(j);
+				}
+			}
+			return true;
+		}
+		
+		/**
+		 * Number of entries, the entry itself included if present, with no
+		 *  more stars and no less value than the entry.
+		 */
+		private int dominators(Entry entry) {
+			int count = 0;
+			for (Entry other : entries) {
+				if (other.stars > entry.stars) { break; }
+				if (other.value >= entry.value) { count++; }
+			}
+			return count;
+		}
+		
+		private synchronized void remove(Entry entry) {
+			entries.remove(entry);
+		}
+		
+		private synchronized List<Entry> snapshot() {
+			return new ArrayList<Entry>(entries);
+		}
+	}
+	
+	/*
+	 * Runs the constellations through the states one at a time
+	 */
+	private final class Solve extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		protected void compute() {
+			Entry empty = new Entry(0.0, 0, null, -1, 0);
+			bucket(new int[NUM_AFFINITIES], new int[NUM_AFFINITIES]).offer(empty);
+			offerValue(0.0);
+			
+			for (int item = 0; item < numItems && continueSearching; item++) {
+				List<Bucket> buckets = new ArrayList<Bucket>(states.values());
+				List<Bucket> entryBuckets = new ArrayList<Bucket>();
+				List<Entry> entries = new ArrayList<Entry>();
+				for (Bucket bucket : buckets) {
+					for (Entry entry : bucket.snapshot()) {
+						entryBuckets.add(bucket);
+						entries.add(entry);
+					}
+				}
+				new Expand(item, entryBuckets, entries, 0, entries.size()).invoke();
+			}
+			
+			if (continueSearching) {
+				submitBest();
+			}
+		}
+	}
+	
+	/*
+	 * Makes every choice for one constellation from the entries from start to end
+	 */
+	private final class Expand extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final int item;
+		private final List<Bucket> buckets;
+		private final List<Entry> entries;
+		private final int start;
+		private final int end;
+		
+		private Expand(int item, List<Bucket> buckets, List<Entry> entries, int start, int end) {
+			this.item = item;
+			this.buckets = buckets;
+			this.entries = entries;
+			this.start = start;
+			this.end = end;
+		}
+		
+		protected void compute() {
+			if (end - start > EXPAND_CHUNK) {
+				int mid = (start + end) >>> 1;
+				invokeAll(new Expand(item, buckets, entries, start, mid),
+						new Expand(item, buckets, entries, mid, end));
+				return;
+			}
+			
+			int[] totals = new int[NUM_AFFINITIES];
+			int[] needs = new int[NUM_AFFINITIES];
+			for (int i = start; i < end && continueSearching; i++) {
+				Bucket bucket = buckets.get(i);
+				Entry entry = entries.get(i);
+				
+				// Drop the entry if it can no longer be valid, or reach the top builds
+				if (!completable(bucket.totals, bucket.needs, item)
+						|| entry.value + suffixBestStars[item * (Controller.MAX_STARS + 1)
+								+ Controller.MAX_STARS - entry.stars] < threshold) {
+					bucket.remove(entry);
+					continue;
+				}
+				
+				int itemStars = constellations[items[item]].numStars();
+				for (int k = 1; k <= itemStars; k++) {
+					double kValue = partialValues[item][k];
+					if (entry.stars + k > Controller.MAX_STARS
+							|| kValue == Double.NEGATIVE_INFINITY) { continue; }
+					
+					boolean whole = k == itemStars;
+					int offset = item * NUM_AFFINITIES;
+					for (int a = 0; a < NUM_AFFINITIES; a++) {
+						int total = bucket.totals[a] + (whole ? itemRewards[offset + a] : 0);
+						totals[a] = Math.min(total, maxRequirement[a]);
+						int need = Math.max(bucket.needs[a], itemRequirements[offset + a]);
+						needs[a] = need <= totals[a] ? 0 : need;
+					}
+					if (!completable(totals, needs, item + 1)) { continue; }
+					
+					Entry next = new Entry(entry.value + kValue, entry.stars + k, entry, item, k);
+					Bucket nextBucket = bucket(totals, needs);
+					iterations.increment();
+					if (nextBucket.offer(next) && nextBucket.isValid()) {
+						offerValue(next.value);
+					}
+				}
+			}
+		}
+	}
+	
+	private final int topK;
+	
+	// Constellations in the order they are decided, by ordinal
+	private final int[] items;
+	private final int numItems;
+	private final int[] itemRequirements;
+	private final int[] itemRewards;
+	private final int[] suffixRewards;
+	private final int[] maxRequirement;
+	
+	// partialValues[item][k] is the best value of k connected stars from the head star
+	private final double[][] partialValues;
+	
+	// Sum of the best k star values from item onwards, at item * (MAX_STARS + 1) + k
+	private final double[] suffixBestStars;
+	
+	private final Map<Long, Bucket> states;
+	private final int[] keyShift;
+	
+	// The topK best values of valid entries found so far, lowest first
+	private final PriorityQueue<Double> bestValues;
+	private volatile double threshold;
+	
+	public ExactSolver(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds) {
+		this(constellationValues, starValues, topBuilds, DEFAULT_TOP_K);
+	}
+	
+	/**
+	 * @param topK: number of best builds to find
+	 * @throws IllegalArgumentException if the requirements are too high to
+	 *  pack an affinity state in a long
+	 */
+	public ExactSolver(Map<Constellation, Double> constellationValues,
+			Map<Star, Double> starValues, TopBuilds topBuilds, int topK) {
+		super(constellationValues, starValues, topBuilds);
+		this.topK = topK;
+		
+		// Decide the constellations that depend on the least first
+		List<Constellation> ordered = BuildWalker.reachableConstellations(sortedConstellations);
+		Collections.sort(ordered, new Comparator<Constellation>() {
+			public int compare(Constellation c1, Constellation c2) {
+				int diff = c1.getRequirement().total() - c2.getRequirement().total();
+				return diff != 0 ? diff : c1.getOrdinal() - c2.getOrdinal();
+			}
+		});
+		
+		double[] values = StarTreeValues.valuesByOrdinal(ordered, starValues);
+		numItems = ordered.size();
+		items = new int[numItems];
+		itemRequirements = new int[numItems * NUM_AFFINITIES];
+		itemRewards = new int[numItems * NUM_AFFINITIES];
+		maxRequirement = new int[NUM_AFFINITIES];
+		partialValues = new double[numItems][];
+		for (int item = 0; item < numItems; item++) {
+			Constellation c = ordered.get(item);
+			items[item] = c.getOrdinal();
+			for (int a = 0; a < NUM_AFFINITIES; a++) {
+				int requirement = c.getRequirement().getValue(AFFINITIES[a]);
+				itemRequirements[item * NUM_AFFINITIES + a] = requirement;
+				itemRewards[item * NUM_AFFINITIES + a] = c.getReward().getValue(AFFINITIES[a]);
+				maxRequirement[a] = Math.max(maxRequirement[a], requirement);
+			}
+			double[] connected = new StarTreeValues(c, values).bestValues(c.headStar());
+			partialValues[item] = Arrays.copyOf(connected, c.numStars() + 1);
+			Arrays.fill(partialValues[item], Math.min(connected.length, c.numStars()),
+					c.numStars(), Double.NEGATIVE_INFINITY);
+			// A whole constellation is worth its full value, whatever its star tree
+			partialValues[item][c.numStars()] = cValues[c.getOrdinal()];
+		}
+		
+		suffixRewards = new int[(numItems + 1) * NUM_AFFINITIES];
+		for (int item = numItems - 1; item >= 0; item--) {
+			for (int a = 0; a < NUM_AFFINITIES; a++) {
+				suffixRewards[item * NUM_AFFINITIES + a] =
+						suffixRewards[(item + 1) * NUM_AFFINITIES + a]
+						+ itemRewards[item * NUM_AFFINITIES + a];
+			}
+		}
+		
+		int stride = Controller.MAX_STARS + 1;
+		suffixBestStars = new double[(numItems + 1) * stride];
+		List<Double> suffixStarValues = new ArrayList<Double>();
+		for (int item = numItems - 1; item >= 0; item--) {
+			for (Star star : constellations[items[item]].getStars()) {
+				suffixStarValues.add(Math.max(0.0, values[star.getOrdinal()]));
+			}
+			Collections.sort(suffixStarValues, Collections.reverseOrder());
+			for (int k = 1; k < stride; k++) {
+				double value = k <= suffixStarValues.size() ? suffixStarValues.get(k - 1) : 0.0;
+				suffixBestStars[item * stride + k] = suffixBestStars[item * stride + k - 1] + value;
+			}
+		}
+		
+		keyShift = new int[2 * NUM_AFFINITIES];
+		int bits = 0;
+		for (int a = 0; a < NUM_AFFINITIES; a++) {
+			int width = 32 - Integer.numberOfLeadingZeros(maxRequirement[a]);
+			keyShift[2 * a] = bits;
+			keyShift[2 * a + 1] = bits + width;
+			bits += 2 * width;
+		}
+		if (bits > 64) {
+			throw new IllegalArgumentException("Requirements are too high for the exact solver");
+		}
+		
+		states = new ConcurrentHashMap<Long, Bucket>();
+		bestValues = new PriorityQueue<Double>();
+		threshold = Double.NEGATIVE_INFINITY;
+	}
+	
+	protected ForkJoinTask<?> rootTask(int numThreads) {
+		return new Solve();
+	}
+	
+	/**
+	 * Number of affinity states reached so far.
+	 */
+	public int getStates() {
+		return states.size();
+	}
+	
+	/**
+	 * @return whether the needs can still be met by the totals and the rewards
+	 *  of the constellations from item onwards
+	 */
+	private boolean completable(int[] totals, int[] needs, int item) {
+		for (int a = 0; a < NUM_AFFINITIES; a++) {
+			if (needs[a] > totals[a] + suffixRewards[item * NUM_AFFINITIES + a]) { return false; }
+		}
+		return true;
+	}
+	
+	private Bucket bucket(int[] totals, int[] needs) {
+		long key = 0;
+		for (int a = 0; a < NUM_AFFINITIES; a++) {
+			key |= (long)totals[a] << keyShift[2 * a];
+			key |= (long)needs[a] << keyShift[2 * a + 1];
+		}
+		
+		Bucket bucket = states.get(key);
+		if (bucket == null) {
+			Bucket created = new Bucket(totals.clone(), needs.clone());
+			bucket = states.putIfAbsent(key, created);
+			if (bucket == null) {
+				bucket = created;
+			}
+		}
+		return bucket;
+	}
+	
+	/**
+	 * Records the value of a new valid entry, raising the threshold once
+	 *  topK values are known.
+	 */
+	private void offerValue(double value) {
+		synchronized (bestValues) {
+			if (bestValues.size() < topK) {
+				bestValues.add(value);
+			} else if (value > bestValues.peek()) {
+				bestValues.poll();
+				bestValues.add(value);
+			} else {
+				return;
+			}
+			if (bestValues.size() >= topK) {
+				threshold = bestValues.peek();
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds the topK valid entries and gives them to TopBuilds.
+	 */
+	private void submitBest() {
+		List<Entry> valid = new ArrayList<Entry>();
+		for (Bucket bucket : states.values()) {
+			if (bucket.isValid()) {
+				valid.addAll(bucket.snapshot());
+			}
+		}
+		Collections.sort(valid, new Comparator<Entry>() {
+			public int compare(Entry e1, Entry e2) {
+				return Double.compare(e2.value, e1.value);
+			}
+		});
+		
+		for (Entry entry : valid.subList(0, Math.min(topK, valid.size()))) {
+			List<Constellation> whole = new ArrayList<Constellation>();
+			Map<Constellation, Integer> partials = new HashMap<Constellation, Integer>();
+			for (Entry e = entry; e.parent != null; e = e.parent) {
+				Constellation c = constellations[items[e.item]];
+				if (e.itemStars == c.numStars()) {
+					whole.add(c);
+				} else {
+					partials.put(c, e.itemStars);
+				}
+			}
+			topBuilds.submit(whole, partials, entry.value);
+		}
+	}
+}
@@ -0,0 +1,490 @@
+package gdbuildmaker;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves searches over HTTP, so several clients can run weight profiles
+ * against one loaded dataset and poll their results. Every session's search
+ * runs on one shared pool of worker threads, and requests are answered on
+ * threads of their own, so polling stays responsive while searches run.
+ * Annealing never ends and keeps one thread per chain, so each session's
+ * annealing is capped at a share of the pool, and annealing sessions together
+ * leave at least one thread to the other sessions. An annealing session that
+ * would get no chain is refused until another one stops.
+ *
+ * There is no authentication, and a client can load any directory the
+ * process can read, so the server listens on the loopback address unless
+ * told to bind another.
+ *
+ *   POST   /dataset?dir=D           load the constellations from game directory D
+ *   GET    /dataset                 number of constellations and the effect list
+ *   POST   /sessions?strategy=S     start a search, the body holds effect,weight
+ *                                   lines. Also takes pruning, canonical and
+ *                                   symmetric flags for walks; pruning
+ *                                   needs canonical.
+ *   GET    /sessions                every session and its progress
+ *   GET    /sessions/ID?top=N       progress and the best N builds of a session
+ *   POST   /sessions/ID/stop        stop a session, keeping its results
+ *   DELETE /sessions/ID             stop and forget a session
+ *
+ * Usage: QueryServer [port] [gameDir] [--threads N] [--session-threads N]
+ *                    [--max-sessions N] [--bind ADDRESS]
+ *   --threads N         threads shared by every session (default the number of cores)
+ *   --session-threads N annealing chains each session may run (default a
+ *                       quarter of the threads, at least one)
+ *   --max-sessions N    sessions that may exist at once (default 16)
+ *   --bind ADDRESS      address to listen on (default loopback)
+ */
+public class QueryServer {
+	public static final int DEFAULT_PORT = 8080;
+	public static final int DEFAULT_MAX_SESSIONS = 16;
+	private static final int REQUEST_THREADS = 4;
+	private static final int DEFAULT_TOP = 20;
+	private static final int SESSION_SHARE = 4; // sessions that can anneal at once by default
+
+	/*
+	 * A search started by a client
+	 */
+	private static final class Session {
+		private final int id;
+		private final Controller controller;
+		private final BuildSearch.Strategy strategy;
+		private final int chains; // annealing chains held on the workers, or 0
+		private final long startTime;
+		private boolean stopped;
+		private long endTime; // when the search was first seen stopped or finished, or 0
+
+		private Session(int id, Controller controller, BuildSearch.Strategy strategy, int chains) {
+			this.id = id;
+			this.controller = controller;
+			this.strategy = strategy;
+			this.chains = chains;
+			this.startTime = System.currentTimeMillis();
+			this.stopped = false;
+			this.endTime = 0;
+		}
+
+		/**
+		 * @return true if the session was running until this call
+		 */
+		private synchronized boolean stop() {
+			if (stopped) { return false; }
+			controller.stop();
+			stopped = true;
+			return true;
+		}
+
+		private synchronized void writeStatus(StringBuilder json) {
+			boolean finished = controller.isFinished();
+			if (endTime == 0 && (stopped || finished)) {
+				endTime = System.currentTimeMillis();
+			}
+			String state = stopped ? "stopped" : finished ? "finished" : "running";
+			long elapsed = (endTime != 0 ? endTime : System.currentTimeMillis()) - startTime;
+			long builds = controller.getBuildsVisited();
+			json.append("{\"id\":").append(id)
+				.append(",\"strategy\":").append(quote(strategy.name()))
+				.append(",\"state\":").append(quote(state))
+				.append(",\"buildsVisited\":").append(builds)
+				.append(",\"buildsPerSecond\":")
+				.append(elapsed > 0 ? (long)(builds * 1000.0 / elapsed) : 0)
+				.append(",\"seconds\":").append(elapsed / 1000.0);
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService requestThreads;
+	private final ForkJoinPool workers;
+	private final int sessionThreads;
+	private final int maxSessions;
+	private final int maxAnnealingChains;
+
+	private volatile List<Constellation> constellations;
+	private volatile List<String> loaderErrors;
+
+	private final Map<Integer, Session> sessions;
+	private final AtomicInteger nextId;
+	private int annealingChains; // held by running sessions, guarded by sessions
+
+	/**
+	 * Listens on the loopback address only, and gives each session's
+	 *  annealing the default share of the workers.
+	 * 
+	 * @param port: port to listen on
+	 * @param numWorkers: threads shared by the searches of every session
+	 * @param maxSessions: sessions that may exist at once
+	 */
+	public QueryServer(int port, int numWorkers, int maxSessions) throws IOException {
+		this(InetAddress.getLoopbackAddress(), port, numWorkers,
+				defaultSessionThreads(numWorkers), maxSessions);
+	}
+	
+	/**
+	 * @param bindAddress: address to listen on, any other than loopback lets
+	 *  other hosts start searches and load directories
+	 * @param sessionThreads: most annealing chains a session runs on the workers
+	 */
+	public QueryServer(InetAddress bindAddress, int port, int numWorkers, int sessionThreads,
+			int maxSessions) throws IOException {
+		this.workers = new ForkJoinPool(numWorkers);
+		this.sessionThreads = sessionThreads;
+		this.maxSessions = maxSessions;
+		this.maxAnnealingChains = Math.max(1, numWorkers - 1);
+		annealingChains = 0;
+		constellations = null;
+		loaderErrors = new ArrayList<String>();
+		sessions = new ConcurrentHashMap<Integer, Session>();
+		nextId = new AtomicInteger(1);
+
+		server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+		requestThreads = Executors.newFixedThreadPool(REQUEST_THREADS);
+		server.setExecutor(requestThreads);
+		server.createContext("/dataset", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleDataset(exchange);
+			}
+		});
+		server.createContext("/sessions", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				handleSessions(exchange);
+			}
+		});
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = DEFAULT_PORT;
+		String gameDir = null;
+		int numWorkers = Controller.BUILDWALKER_THREADS;
+		int sessionThreads = 0;
+		int maxSessions = DEFAULT_MAX_SESSIONS;
+		InetAddress bindAddress = InetAddress.getLoopbackAddress();
+
+		int positional = 0;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads")) {
+				numWorkers = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--session-threads")) {
+				sessionThreads = Integer.parseInt(args[++i]);
+			} else if (args[i].equals("--bind")) {
+				bindAddress = InetAddress.getByName(args[++i]);
+			} else if (args[i].equals("--max-sessions")) {
+				maxSessions = Integer.parseInt(args[++i]);
+			} else if (positional++ == 0) {
+				port = Integer.parseInt(args[i]);
+			} else {
+				gameDir = args[i];
+			}
+		}
+
+		if (sessionThreads <= 0) {
+			sessionThreads = defaultSessionThreads(numWorkers);
+		}
+		QueryServer queryServer = new QueryServer(bindAddress, port, numWorkers, sessionThreads,
+				maxSessions);
+		if (gameDir != null) {
+			queryServer.loadConstellations(gameDir);
+			for (String error : queryServer.loaderErrors) {
+				System.err.println(error);
+			}
+		}
+		queryServer.start();
+		System.out.println("Listening on " + bindAddress.getHostAddress() + ":" + port);
+	}
+
+	/**
+	 * Sets the dataset that sessions started from now on search. Sessions
+	 *  already running keep the dataset they started with.
+	 */
+	public void setConstellations(List<Constellation> constellations) {
+		this.constellations = constellations;
+	}
+
+	public void loadConstellations(String dir) {
+		ConstellationLoader loader = new ConstellationLoader();
+		List<Constellation> loaded = loader.loadConstellations(dir);
+		loaderErrors = loader.getErrors();
+		constellations = loaded;
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	/**
+	 * Stops accepting requests, then stops every session.
+	 */
+	public void stop() {
+		server.stop(0);
+		requestThreads.shutdown();
+		for (Session session : sessions.values()) {
+			stopSession(session);
+		}
+		sessions.clear();
+		workers.shutdown();
+	}
+
+	private void handleDataset(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		if (method.equals("POST")) {
+			String dir = queryParameters(exchange).get("dir");
+			if (dir == null) {
+				respond(exchange, 400, error("dir is required"));
+				return;
+			}
+			loadConstellations(dir);
+		} else if (!method.equals("GET")) {
+			respond(exchange, 405, error("Use GET or POST"));
+			return;
+		}
+
+		List<Constellation> current = constellations;
+		if (current == null) {
+			respond(exchange, 404, error("No dataset is loaded"));
+			return;
+		}
+		StringBuilder json = new StringBuilder();
+		json.append("{\"constellations\":").append(current.size());
+		json.append(",\"effects\":");
+		appendStrings(json, new Controller(current).getEffectList());
+		json.append(",\"errors\":");
+		appendStrings(json, loaderErrors);
+		json.append('}');
+		respond(exchange, 200, json.toString());
+	}
+
+	private void handleSessions(HttpExchange exchange) throws IOException {
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath().replaceAll("/+$", "").split("/");
+		// path is "", "sessions"[, id[, action]]
+
+		try {
+			if (path.length == 2) {
+				if (method.equals("POST")) {
+					startSession(exchange);
+				} else if (method.equals("GET")) {
+					listSessions(exchange);
+				} else {
+					respond(exchange, 405, error("Use GET or POST"));
+				}
+				return;
+			}
+
+			Session session = sessions.get(Integer.parseInt(path[2]));
+			if (session == null) {
+				respond(exchange, 404, error("No session " + path[2]));
+			} else if (path.length == 3 && method.equals("GET")) {
+				String top = queryParameters(exchange).get("top");
+				respond(exchange, 200, sessionResults(session,
+						top != null ? Integer.parseInt(top) : DEFAULT_TOP));
+			} else if (path.length == 3 && method.equals("DELETE")) {
+				sessions.remove(session.id);
+				stopSession(session);
+				respond(exchange, 200, sessionResults(session, 0));
+			} else if (path.length == 4 && path[3].equals("stop") && method.equals("POST")) {
+				stopSession(session);
+				respond(exchange, 200, sessionResults(session, 0));
+			} else {
+				respond(exchange, 404, error("Unknown request"));
+			}
+		} catch (IllegalArgumentException e) {
+			// Includes NumberFormatException from a bad id or parameter
+			respond(exchange, 400, error(e.getMessage()));
+		}
+	}
+
+	private void startSession(HttpExchange exchange) throws IOException {
+		List<Constellation> current = constellations;
+		if (current == null) {
+			respond(exchange, 409, error("No dataset is loaded"));
+			return;
+		}
+
+		Map<String, String> parameters = queryParameters(exchange);
+		BuildSearch.Strategy strategy = BuildSearch.Strategy.WALK;
+		if (parameters.containsKey("strategy")) {
+			strategy = BuildSearch.Strategy.valueOf(parameters.get("strategy").toUpperCase());
+		}
+
+		Map<String, Double> weights = EffectWeights.read(
+				new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8));
+		if (weights.isEmpty()) {
+			respond(exchange, 400, error("The body must hold effect,weight lines"));
+			return;
+		}
+
+		Controller controller = new Controller(current);
+		controller.setPool(workers);
+		controller.setStrategy(strategy);
+		controller.setPruning(Boolean.parseBoolean(parameters.get("pruning")));
+		controller.setCanonical(Boolean.parseBoolean(parameters.get("canonical")));
+		controller.setSymmetric(Boolean.parseBoolean(parameters.get("symmetric")));
+
+		Session session;
+		synchronized (sessions) {
+			if (sessions.size() >= maxSessions) {
+				respond(exchange, 503, error("Too many sessions, stop or delete one first"));
+				return;
+			}
+			int chains = 0;
+			if (strategy == BuildSearch.Strategy.ANNEALING) {
+				chains = Math.min(sessionThreads, maxAnnealingChains - annealingChains);
+				if (chains < 1) {
+					respond(exchange, 503, error("Every thread annealing may use is taken,"
+							+ " stop an annealing session first"));
+					return;
+				}
+				annealingChains += chains;
+				controller.setThreads(chains);
+			}
+			session = new Session(nextId.getAndIncrement(), controller, strategy, chains);
+			sessions.put(session.id, session);
+		}
+		
+		// The session holds its place while starting, and only stays once started
+		try {
+			controller.start(weights);
+		} catch (RuntimeException e) {
+			sessions.remove(session.id);
+			releaseChains(session);
+			throw e;
+		}
+
+		respond(exchange, 201, sessionResults(session, 0));
+	}
+
+	/*
+	 * Stops a session's search, and gives back its annealing chains
+	 */
+	private void stopSession(Session session) {
+		if (session.stop()) {
+			releaseChains(session);
+		}
+	}
+
+	private void releaseChains(Session session) {
+		synchronized (sessions) {
+			annealingChains -= session.chains;
+		}
+	}
+
+	private void listSessions(HttpExchange exchange) throws IOException {
+		StringBuilder json = new StringBuilder("[");
+		for (Session session : sessions.values()) {
+			if (json.length() > 1) json.append(',');
+			session.writeStatus(json);
+			json.append('}');
+		}
+		json.append(']');
+		respond(exchange, 200, json.toString());
+	}
+
+	private static String sessionResults(Session session, int top) {
+		StringBuilder json = new StringBuilder();
+		session.writeStatus(json);
+		if (top > 0) {
+			json.append(",\"topBuilds\":[");
+			int n = 0;
+			for (Build build : session.controller.getTopBuilds()) {
+				if (n >= top || build.getValue() <= 0) break;
+				if (n++ > 0) json.append(',');
+				appendBuild(json, build);
+			}
+			json.append(']');
+		}
+		json.append('}');
+		return json.toString();
+	}
+
+	private static void appendBuild(StringBuilder json, Build build) {
+		json.append("{\"value\":").append(build.getValue());
+		json.append(",\"constellations\":");
+		List<String> names = new ArrayList<String>();
+		for (Constellation c : build.getConstellations()) {
+			names.add(c.getName());
+		}
+		appendStrings(json, names);
+		json.append(",\"partials\":{");
+		boolean first = true;
+		for (Map.Entry<Constellation, Integer> partial : build.getPartials().entrySet()) {
+			if (!first) json.append(',');
+			json.append(quote(partial.getKey().getName())).append(':').append(partial.getValue());
+			first = false;
+		}
+		json.append("}}");
+	}
+
+	private static void appendStrings(StringBuilder json, List<String> strings) {
+		json.append('[');
+		for (int i = 0; i < strings.size(); i++) {
+			if (i > 0) json.append(',');
+			json.append(quote(strings.get(i)));
+		}
+		json.append(']');
+	}
+
+	private static String error(String message) {
+		return "{\"error\":" + quote(message) + "}";
+	}
+
+	private static int defaultSessionThreads(int numWorkers) {
+		return Math.max(1, numWorkers / SESSION_SHARE);
+	}
+
+	private static String quote(String s) {
+		StringBuilder quoted = new StringBuilder("\"");
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				quoted.append('\\').append(c);
+			} else if (c < 0x20) {
+				quoted.append(String.format("\\u%04x", (int)c));
+			} else {
+				quoted.append(c);
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	private static Map<String, String> queryParameters(HttpExchange exchange)
+			throws UnsupportedEncodingException {
+		Map<String, String> parameters = new HashMap<String, String>();
+		String query = exchange.getRequestURI().getRawQuery();
+		if (query == null) { return parameters; }
+		for (String pair : query.split("&")) {
+			int eq = pair.indexOf('=');
+			String key = eq < 0 ? pair : pair.substring(0, eq);
+			String value = eq < 0 ? "true" : pair.substring(eq + 1);
+			parameters.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+		}
+		return parameters;
+	}
+
+	private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package gdbuildmaker;
+
+/**
+ * Index over the affinity requirements of a set of constellations, so that
+ * availability is answered with word operations on constellation bitsets
+ * (see ConstellationSet) instead of checking constellations one by one.
+ *
+ * For each affinity and each level up to the highest requirement of that
+ * affinity, a mask holds the constellations whose requirement of the affinity
+ * is at most the level. The constellations available with some affinities are
+ * the AND of one mask per affinity. The complement of a mask is the set of
+ * constellations that depend on more of the affinity than the level, which is
+ * all that needs checking when a removal lowers that affinity.
+ */
+public class RequirementIndex {
+	private static final Affinity[] AFFINITIES = Affinity.values();
+	
+	private final int width;
+	private final int[] maxRequirement; // by affinity ordinal
+	private final int[] maskOffset; // start of each affinity's masks in masks
+	private final long[] masks;
+	
+	/**
+	 * @param constellations: constellations by ordinal
+	 */
+	public RequirementIndex(Constellation[] constellations) {
+		width = ConstellationSet.wordsFor(constellations.length);
+		
+		maxRequirement = new int[AFFINITIES.length];
+		for (Constellation c : constellations) {
+			for (Affinity a : AFFINITIES) {
+				maxRequirement[a.ordinal()] = Math.max(
+						maxRequirement[a.ordinal()], c.getRequirement().getValue(a));
+			}
+		}
+		
+		maskOffset = new int[AFFINITIES.length];
+		int totalMasks = 0;
+		for (Affinity a : AFFINITIES) {
+			maskOffset[a.ordinal()] = totalMasks * width;
+			totalMasks += maxRequirement[a.ordinal()] + 1;
+		}
+		
+		masks = new long[totalMasks * width];
+		for (Constellation c : constellations) {
+			int ordinal = c.getOrdinal();
+			for (Affinity a : AFFINITIES) {
+				for (int level = c.getRequirement().getValue(a);
+						level <= maxRequirement[a.ordinal()]; level++) {
+					masks[mask(a.ordinal(), level) + (ordinal >>> 6)] |= 1L << ordinal;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Number of long words in the constellation bitsets used by the index.
+	 */
+	public int width() {
+		return width;
+	}
+	
+	/**
+	 * Writes the set of constellations available with the given affinities
+	 *  into dest.
+	 */
+	public void available(AffinityValues av, long[] dest) {
+		available(av, dest, 0);
+	}
+	
+	/**
+	 * Writes the set of constellations available with the given affinities
+	 *  into dest, starting at offset.
+	 */
+	public void available(AffinityValues av, long[] dest, int offset) {
+		int m0 = mask(0, level(0, av));
+		for (int w = 0; w < width; w++) {
+			dest[offset + w] = masks[m0 + w];
+		}
+		for (int a = 1; a < AFFINITIES.length; a++) {
+			int m = mask(a, level(a, av));
+			for (int w = 0; w < width; w++) {
+				dest[offset + w] &= masks[m + w];
+			}
+		}
+	}
+	
+	/**
+	 * @return true if every constellation in the build is available with the
+	 *  given affinities
+	 */
+	public boolean allAvailable(long[] build, AffinityValues av) {
+		for (int a = 0; a < AFFINITIES.length; a++) {
+			if (!allAvailable(build, a, av)) { return false; }
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks that a build is still valid after a constellation was removed
+	 *  from it. Only the affinities the removed constellation rewarded have
+	 *  dropped, so only the constellations depending on those are checked.
+	 * 
+	 * @param build: the build, without the removed constellation
+	 * @param av: the build's affinities, without the removed constellation's reward
+	 * @param removed: the constellation that was removed
+	 * @return true if every constellation in the build is still available
+	 */
+	public boolean validAfterRemoving(long[] build, AffinityValues av, Constellation removed) {
+		for (int a = 0; a < AFFINITIES.length; a++) {
+			if (removed.getReward(AFFINITIES[a]) > 0 && !allAvailable(build, a, av)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private boolean allAvailable(long[] build, int a, AffinityValues av) {
+		int m = mask(a, level(a, av));
+		for (int w = 0; w < width; w++) {
+			if ((build[w] & ~masks[m + w]) != 0) { return false; }
+		}
+		return true;
+	}
+	
+	private int level(int a, AffinityValues av) {
+		return Math.min(av.getValue(AFFINITIES[a]), maxRequirement[a]);
+	}
+	
+	private int mask(int a, int level) {
+		return maskOffset[a] + level * width;
+	}
+}
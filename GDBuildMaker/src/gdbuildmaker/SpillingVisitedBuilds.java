@@ -0,0 +1,557 @@
+package gdbuildmaker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Visited builds kept in a bounded in-memory tier that spills to sorted,
+ * memory-mapped segment files on disk once it holds hotCapacity builds.
+ *
+ * Spilling happens on a background thread: the full tier is frozen and a
+ * fresh one takes its place. The frozen tier is written straight into a new
+ * segment and sorted there. Adds wait while the fresh tier is full and the
+ * frozen one has not been written yet, so the heap holds at most two tiers
+ * at a time.
+ *
+ * Segments of similar size are merged on another background thread, so that
+ * the number of segments a lookup has to binary search grows only
+ * logarithmically with the number of builds. Merging does not hold up
+ * spilling.
+ *
+ * If writing a segment fails, the frozen tier is kept on the heap and no more
+ * tiers are spilled, and the next add() or size() throws the failure.
+ */
+public class SpillingVisitedBuilds implements VisitedBuilds {
+	// Largest mapping of a single segment chunk, FileChannel.map is limited to 2GB
+	private static final long MAX_CHUNK_BYTES = 1L << 30;
+
+	/*
+	 * An immutable file of builds sorted by their words, mapped in chunks
+	 */
+	private final class Segment {
+		private final File file;
+		private final long count;
+		private final int recordsPerChunk;
+		private final LongBuffer[] chunks;
+
+		private Segment(File file, long count) throws IOException {
+			this.file = file;
+			this.count = count;
+
+			int recordBytes = 8 * width;
+			recordsPerChunk = (int)(MAX_CHUNK_BYTES / recordBytes);
+			chunks = new LongBuffer[(int)((count + recordsPerChunk - 1) / recordsPerChunk)];
+
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				raf.setLength(count * recordBytes);
+				FileChannel channel = raf.getChannel();
+				for (int i = 0; i < chunks.length; i++) {
+					long position = (long)i * recordsPerChunk * recordBytes;
+					long size = Math.min(count * recordBytes - position, (long)recordsPerChunk * recordBytes);
+					MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+					chunks[i] = mapped.asLongBuffer();
+				}
+			}
+		}
+
+		private long word(long record, int w) {
+			return chunks[(int)(record / recordsPerChunk)]
+					.get((int)(record % recordsPerChunk) * width + w);
+		}
+
+		private void putWord(long record, int w, long value) {
+			chunks[(int)(record / recordsPerChunk)]
+					.put((int)(record % recordsPerChunk) * width + w, value);
+		}
+
+		private int compare(long record, long[] bits) {
+			for (int w = 0; w < width; w++) {
+				int diff = Long.compare(word(record, w), bits[w]);
+				if (diff != 0) { return diff; }
+			}
+			return 0;
+		}
+
+		private int compare(long a, long b) {
+			for (int w = 0; w < width; w++) {
+				int diff = Long.compare(word(a, w), word(b, w));
+				if (diff != 0) { return diff; }
+			}
+			return 0;
+		}
+		
+		private void swap(long a, long b) {
+			for (int w = 0; w < width; w++) {
+				long tmp = word(a, w);
+				putWord(a, w, word(b, w));
+				putWord(b, w, tmp);
+			}
+		}
+		
+		/*
+		 * In-place quicksort of the records from index low to high
+		 */
+		private void sort(long low, long high) {
+			while (low < high) {
+				long mid = (low + high) >>> 1;
+				swap(mid, high);
+				long store = low;
+				for (long i = low; i < high; i++) {
+					if (compare(i, high) < 0) {
+						swap(i, store++);
+					}
+				}
+				swap(store, high);
+				
+				// Recurse into the smaller side to bound the stack depth
+				if (store - low < high - store) {
+					sort(low, store - 1);
+					low = store + 1;
+				} else {
+					sort(store + 1, high);
+					high = store - 1;
+				}
+			}
+		}
+		
+		private boolean contains(long[] bits) {
+			long low = 0;
+			long high = count - 1;
+			while (low <= high) {
+				long mid = (low + high) >>> 1;
+				int diff = compare(mid, bits);
+				if (diff < 0) {
+					low = mid + 1;
+				} else if (diff > 0) {
+					high = mid - 1;
+				} else {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void delete() {
+			if (!file.delete()) {
+				// Mapped files can't be deleted on some platforms until unmapped
+				file.deleteOnExit();
+			}
+		}
+	}
+
+	private final int width;
+	private final long hotCapacity;
+	private final File directory;
+
+	// Guards the tier fields below. Adds share the lock, swaps take it
+	// exclusively. The tiers can also be read without it to see how full they are.
+	private final ReadWriteLock lock;
+	private volatile VisitedBuildSet hot;
+	private volatile VisitedBuildSet frozen;
+	private List<Segment> segments;
+
+	private final LongAdder size;
+	private final AtomicBoolean spilling;
+	private final AtomicBoolean merging;
+	private final ExecutorService spiller;
+	private final ExecutorService merger;
+	
+	// Notified when the hot tier is frozen, when the frozen tier is written
+	// out, and when writing it fails
+	private final Object spilled;
+	private volatile IOException failure;
+
+	/**
+	 * @param width: number of long words in each build
+	 * @param hotCapacity: number of builds to hold on the heap before spilling to disk
+	 * @param directory: directory to create segment files in
+	 */
+	public SpillingVisitedBuilds(int width, long hotCapacity, File directory) {
+		this.width = width;
+		this.hotCapacity = hotCapacity;
+		this.directory = directory;
+
+		lock = new ReentrantReadWriteLock();
+		hot = new VisitedBuildSet(width);
+		frozen = null;
+		segments = new ArrayList<Segment>();
+
+		size = new LongAdder();
+		spilling = new AtomicBoolean(false);
+		merging = new AtomicBoolean(false);
+		spiller = Executors.newSingleThreadExecutor(daemonThreads("visited-builds-spiller"));
+		merger = Executors.newSingleThreadExecutor(daemonThreads("visited-builds-merger"));
+		spilled = new Object();
+		failure = null;
+	}
+	
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread t = new Thread(runnable, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * @throws UncheckedIOException if spilling builds to disk has failed
+	 */
+	public boolean add(long[] bits) {
+		checkFailure();
+		awaitRoom();
+		
+		boolean added;
+		long hotSize;
+
+		lock.readLock().lock();
+		try {
+			added = !inSegments(bits)
+					&& (frozen == null || !frozen.contains(bits))
+					&& hot.add(bits);
+			hotSize = hot.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+
+		if (added) {
+			size.increment();
+			if (hotSize >= hotCapacity && spilling.compareAndSet(false, true)) {
+				spiller.execute(new Runnable() {
+					public void run() {
+						spill();
+					}
+				});
+			}
+		}
+		return added;
+	}
+
+	/**
+	 * @throws UncheckedIOException if spilling builds to disk has failed
+	 */
+	public long size() {
+		checkFailure();
+		return size.sum();
+	}
+	
+	private void checkFailure() {
+		IOException e = failure;
+		if (e != null) {
+			throw new UncheckedIOException("Spilling visited builds failed", e);
+		}
+	}
+	
+	/*
+	 * Waits while the hot tier is full and a spill is under way, so the heap
+	 * never holds more than two tiers
+	 */
+	private void awaitRoom() {
+		if (!spilling.get() || hot.size() < hotCapacity) { return; }
+		synchronized (spilled) {
+			while (spilling.get() && failure == null && hot.size() >= hotCapacity) {
+				try {
+					spilled.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		checkFailure();
+	}
+
+	public long bytesOnDisk() {
+		long bytes = 0;
+		lock.readLock().lock();
+		try {
+			for (Segment segment : segments) {
+				bytes += segment.count * 8 * width;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return bytes;
+	}
+
+	/**
+	 * Writes each segment's sorted builds, then the builds on the heap.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		// Holding the write lock keeps the spiller from swapping tiers meanwhile
+		lock.writeLock().lock();
+		try {
+			out.writeInt(width);
+			out.writeInt(segments.size());
+			for (Segment segment : segments) {
+				out.writeLong(segment.count);
+				for (long r = 0; r < segment.count; r++) {
+					for (int w = 0; w < width; w++) {
+						out.writeLong(segment.word(r, w));
+					}
+				}
+			}
+			
+			out.writeBoolean(frozen != null);
+			if (frozen != null) {
+				frozen.writeTo(out);
+			}
+			hot.writeTo(out);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Restores segments straight into new segment files, and the builds that
+	 *  were on the heap into the hot tier.
+	 */
+	public void readFrom(DataInputStream in) throws IOException {
+		if (in.readInt() != width) {
+			throw new IOException("Visited builds have a different width");
+		}
+		
+		lock.writeLock().lock();
+		try {
+			int numSegments = in.readInt();
+			List<Segment> newSegments = new ArrayList<Segment>(segments);
+			for (int i = 0; i < numSegments; i++) {
+				long count = in.readLong();
+				Segment segment = new Segment(newSegmentFile(), count);
+				for (long r = 0; r < count; r++) {
+					for (int w = 0; w < width; w++) {
+						segment.putWord(r, w, in.readLong());
+					}
+				}
+				newSegments.add(segment);
+				size.add(count);
+			}
+			segments = newSegments;
+			
+			long hotSize = hot.size();
+			if (in.readBoolean()) {
+				hot.readFrom(in);
+			}
+			hot.readFrom(in);
+			size.add(hot.size() - hotSize);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	public void close() {
+		spiller.shutdown();
+		merger.shutdown();
+		try {
+			spiller.awaitTermination(1, TimeUnit.MINUTES);
+			merger.awaitTermination(1, TimeUnit.MINUTES);
+		} catch (InterruptedException e) {}
+
+		lock.writeLock().lock();
+		try {
+			for (Segment segment : segments) {
+				segment.delete();
+			}
+			segments = new ArrayList<Segment>();
+			hot = new VisitedBuildSet(width);
+			frozen = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private boolean inSegments(long[] bits) {
+		for (int i = segments.size() - 1; i >= 0; i--) {
+			if (segments.get(i).contains(bits)) { return true; }
+		}
+		return false;
+	}
+
+	/**
+	 * Writes the hot tier out to a new segment, then has segments of similar
+	 * size merged. Runs on the spiller thread.
+	 */
+	private void spill() {
+		lock.writeLock().lock();
+		try {
+			// A tier that failed to be written stays frozen, and nothing more is spilled
+			if (frozen != null) { return; }
+			frozen = hot;
+			hot = new VisitedBuildSet(width);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		synchronized (spilled) {
+			spilled.notifyAll();
+		}
+
+		try {
+			Segment segment = writeSegment(frozen);
+
+			lock.writeLock().lock();
+			try {
+				List<Segment> newSegments = new ArrayList<Segment>(segments);
+				newSegments.add(segment);
+				segments = newSegments;
+				frozen = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			spilling.set(false);
+		} catch (Throwable e) {
+			// Anything short of success leaves spilling set, so it must be recorded
+			fail(e);
+			return;
+		} finally {
+			synchronized (spilled) {
+				spilled.notifyAll();
+			}
+		}
+		
+		if (merging.compareAndSet(false, true)) {
+			merger.execute(new Runnable() {
+				public void run() {
+					mergeAll();
+				}
+			});
+		}
+	}
+	
+	private void fail(Throwable e) {
+		if (failure == null) {
+			failure = e instanceof IOException ? (IOException)e : new IOException(e);
+		}
+	}
+	
+	/*
+	 * Merges adjacent segments while some are close in size. Runs on the
+	 * merger thread, the only one that removes segments, so the pair being
+	 * merged stays adjacent while the spiller appends new ones.
+	 */
+	private void mergeAll() {
+		try {
+			do {
+				while (true) {
+					Segment older = null;
+					Segment newer = null;
+					lock.readLock().lock();
+					try {
+						for (int i = segments.size() - 1; i > 0; i--) {
+							if (segments.get(i - 1).count <= 2 * segments.get(i).count) {
+								older = segments.get(i - 1);
+								newer = segments.get(i);
+								break;
+							}
+						}
+					} finally {
+						lock.readLock().unlock();
+					}
+					if (older == null) { break; }
+					
+					Segment merged = mergeSegments(older, newer);
+					
+					lock.writeLock().lock();
+					try {
+						List<Segment> newSegments = new ArrayList<Segment>(segments);
+						int i = newSegments.indexOf(older);
+						newSegments.set(i, merged);
+						newSegments.remove(i + 1);
+						segments = newSegments;
+					} finally {
+						lock.writeLock().unlock();
+					}
+					older.delete();
+					newer.delete();
+				}
+				merging.set(false);
+				
+				// A segment may have been added after the last look
+			} while (needsMerge() && merging.compareAndSet(false, true));
+		} catch (Throwable e) {
+			fail(e);
+		}
+	}
+	
+	private boolean needsMerge() {
+		lock.readLock().lock();
+		try {
+			for (int i = segments.size() - 1; i > 0; i--) {
+				if (segments.get(i - 1).count <= 2 * segments.get(i).count) { return true; }
+			}
+			return false;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/*
+	 * Copies the builds straight from the tier's tables into a new segment,
+	 * and sorts them there, so no copy of the tier is made on the heap
+	 */
+	private Segment writeSegment(VisitedBuildSet builds) throws IOException {
+		final Segment segment = new Segment(newSegmentFile(), builds.size());
+		builds.forEach(new VisitedBuildSet.Visitor() {
+			private long r = 0;
+			
+			public void visit(long[] words, int offset) {
+				for (int w = 0; w < width; w++) {
+					segment.putWord(r, w, words[offset + w]);
+				}
+				r++;
+			}
+		});
+		segment.sort(0, segment.count - 1);
+		return segment;
+	}
+
+	private Segment mergeSegments(Segment a, Segment b) throws IOException {
+		Segment merged = new Segment(newSegmentFile(), a.count + b.count);
+		long[] head = new long[width];
+		long i = 0;
+		long j = 0;
+		long r = 0;
+		while (i < a.count || j < b.count) {
+			boolean takeA;
+			if (j >= b.count) {
+				takeA = true;
+			} else if (i >= a.count) {
+				takeA = false;
+			} else {
+				for (int w = 0; w < width; w++) {
+					head[w] = b.word(j, w);
+				}
+				takeA = a.compare(i, head) < 0;
+			}
+
+			Segment from = takeA ? a : b;
+			long record = takeA ? i++ : j++;
+			for (int w = 0; w < width; w++) {
+				merged.putWord(r, w, from.word(record, w));
+			}
+			r++;
+		}
+		return merged;
+	}
+
+	private File newSegmentFile() throws IOException {
+		return File.createTempFile("visited-", ".seg", directory);
+	}
+}
@@ -39,7 +39,7 @@ public final class Star {
 	
 	private final Map<String, Double> effects;
 	private final List<Star> children;
-	private final int ordinal;
+	private final int ordinal; // dense index among all loaded stars, see ConstellationLoader
 	
 	private final int hashCode;
 	
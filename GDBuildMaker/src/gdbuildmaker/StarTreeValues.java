@@ -0,0 +1,95 @@
+package gdbuildmaker;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The best values of connected groups of stars in a constellation, found with
+ * a knapsack over its star tree in one pass. For every star, and every number
+ * of stars up to the size of the star's subtree, it holds the best value of a
+ * group that has the star as its head.
+ *
+ * Stars are found by ordinal: the loader numbers a constellation's stars
+ * consecutively from its head star, in the order of getStars().
+ */
+public final class StarTreeValues {
+	private final List<Star> stars;
+	private final int firstOrdinal;
+
+	// best[s][k] is the best value of k stars headed by the s-th star of the
+	// constellation, negative infinity if there is no such group. best[s][0] is 0.
+	private final double[][] best;
+
+	/**
+	 * @param starValues: star values by star ordinal, see valuesByOrdinal()
+	 */
+	public StarTreeValues(Constellation constellation, double[] starValues) {
+		stars = constellation.getStars();
+		firstOrdinal = constellation.headStar().getOrdinal();
+		best = new double[stars.size()][];
+		solve(constellation.headStar(), starValues);
+	}
+
+	/**
+	 * @return the value of every star of the constellations, indexed by ordinal
+	 */
+	public static double[] valuesByOrdinal(Collection<Constellation> constellations,
+			Map<Star, Double> starValues) {
+		int size = 0;
+		for (Constellation c : constellations) {
+			for (Star star : c.getStars()) {
+				size = Math.max(size, star.getOrdinal() + 1);
+			}
+		}
+		double[] values = new double[size];
+		for (Constellation c : constellations) {
+			for (Star star : c.getStars()) {
+				values[star.getOrdinal()] = starValues.get(star);
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * @return the best value of k stars headed by the star, for k from 0 to
+	 *  the number of stars in its subtree. The array must not be modified.
+	 */
+	public double[] bestValues(Star head) {
+		return best[index(head)];
+	}
+
+	/*
+	 * Fills in the tables for the star's subtree, merging in one child's
+	 * subtree at a time
+	 */
+	private double[] solve(Star star, double[] starValues) {
+		double[] values = new double[] { 0.0, starValues[star.getOrdinal()] };
+
+		for (Star child : star.getChildren()) {
+			double[] childValues = solve(child, starValues);
+			double[] merged = new double[values.length + childValues.length - 1];
+			Arrays.fill(merged, Double.NEGATIVE_INFINITY);
+			merged[0] = 0.0;
+			for (int k = 1; k < values.length; k++) {
+				for (int j = 0; j < childValues.length; j++) {
+					merged[k + j] = Math.max(merged[k + j], values[k] + childValues[j]);
+				}
+			}
+			values = merged;
+		}
+
+		int s = index(star);
+		best[s] = values;
+		return values;
+	}
+
+	private int index(Star star) {
+		int s = star.getOrdinal() - firstOrdinal;
+		if (s < 0 || s >= stars.size() || stars.get(s) != star) {
+			throw new IllegalArgumentException("Star is not in the constellation");
+		}
+		return s;
+	}
+}
@@ -1,75 +1,387 @@
 package gdbuildmaker;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The best builds found by a search, shared by its threads. A thread's
+ * submitted builds are held in a batch of its own and merged into the top
+ * builds under the shared lock once the batch is full, so the lock is taken
+ * once per batch rather than once per build. Reading the top builds merges
+ * every thread's batch first.
+ *
+ * The top builds are kept in a min-heap bounded by the number of builds to
+ * keep, so admitting a build takes logarithmic time in that number, and they
+ * are only sorted when read. Only builds of positive value are kept.
+ */
 public class TopBuilds {
-	private static final int DEFAULT_SIZE = 100;
+	public static final int DEFAULT_SIZE = 100;
+	private static final int BATCH_SIZE = 64;
 	
 	public void reset() {
 		reset(DEFAULT_SIZE);
 	}
 	
+	/**
+	 * Drops every build, including those not yet merged, and keeps up to
+	 *  maxSize builds from now on.
+	 */
 	public void reset(int maxSize) {
-		topBuilds.clear();
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("Must keep at least one build");
+		}
+		clearBatches();
+		lock.lock();
+		try {
+			maxBuilds = maxSize;
+			heap = new Build[maxSize];
+			keys = new Key[maxSize];
+			size = 0;
+			members.clear();
+			threshold = 0.0;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/*
+	 * Builds submitted by one thread that are not yet merged. The lock is
+	 * only contended when another thread merges the batch on a read.
+	 */
+	private static class Batch {
+		private final Lock lock = new ReentrantLock();
+		private final List<Build> builds = new ArrayList<Build>(BATCH_SIZE);
+	}
+	
+	/*
+	 * Identifies a build by its value, constellations and partials, so the
+	 * same build is not kept twice
+	 */
+	private static class Key {
+		private final double value;
+		private final Set<Constellation> constellations;
+		private final Map<Constellation, Integer> partials;
+		
+		private Key(Build build) {
+			value = build.getValue();
+			constellations = new HashSet<Constellation>(build.getConstellations());
+			partials = build.getPartials();
+		}
+		
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) { return false; }
+			Key other = (Key) o;
+			return value == other.value
+					&& constellations.equals(other.constellations)
+					&& partials.equals(other.partials);
+		}
+		
+		public int hashCode() {
+			return 31 * (31 * Double.hashCode(value) + constellations.hashCode())
+					+ partials.hashCode();
+		}
 	}
 	
+	/*
+	 * The top builds, guarded by lock. heap[0] to heap[size - 1] is a min-heap
+	 * by value, keys[i] is the key of heap[i], and members holds the keys.
+	 */
 	private final Lock lock;
-	private final List<Build> topBuilds;
+	private Build[] heap;
+	private Key[] keys;
+	private int size;
+	private final Set<Key> members;
+	private volatile int maxBuilds;
+	
+	// Value a build must beat to be admitted, readable without the lock
+	private volatile double threshold;
+	
+	private final ThreadLocal<Batch> batch;
+	private final Queue<Batch> batches; // of every thread that has submitted
 	
 	public TopBuilds() { this(DEFAULT_SIZE); }
 	
 	public TopBuilds(int maxBuilds) {
 		lock = new ReentrantLock();
-		topBuilds = new ArrayList<Build>(maxBuilds);
-		
-		// Fill the top builds list with empty, zero value builds
-		for (int i = 0; i < maxBuilds; i++) {
-			topBuilds.add(new Build(new ArrayList<Constellation>(),
-					new HashMap<Constellation, Integer>(), 0.0));
-		}
+		members = new HashSet<Key>();
+		batches = new ConcurrentLinkedQueue<Batch>();
+		batch = new ThreadLocal<Batch>() {
+			protected Batch initialValue() {
+				Batch batch = new Batch();
+				batches.add(batch);
+				return batch;
+			}
+		};
+		reset(maxBuilds);
 	}
 	
+	/**
+	 * Submits a build, which is copied if it may enter the top builds. It is
+	 *  held in the calling thread's batch until the batch is merged.
+	 */
 	public void submit(Collection<Constellation> constellations,
 			Map<Constellation, Integer> partials, double value) {
+		if (value <= threshold) { return; }
+		
+		Batch batch = this.batch.get();
+		batch.lock.lock();
+		try {
+			batch.builds.add(new Build(new ArrayList<Constellation>(constellations),
+					new HashMap<Constellation, Integer>(partials), value));
+			if (batch.builds.size() >= BATCH_SIZE) {
+				merge(batch);
+			}
+		} finally {
+			batch.lock.unlock();
+		}
+	}
+	
+	/*
+	 * Merges a batch into the top builds and empties it. The batch's lock
+	 * must be held.
+	 */
+	private void merge(Batch batch) {
 		lock.lock();
+		try {
+			for (Build build : batch.builds) {
+				admit(build);
+			}
+		} finally {
+			lock.unlock();
+		}
+		batch.builds.clear();
+	}
+	
+	/*
+	 * Merges every thread's batch into the top builds
+	 */
+	private void mergeBatches() {
+		for (Batch batch : batches) {
+			batch.lock.lock();
+			try {
+				merge(batch);
+			} finally {
+				batch.lock.unlock();
+			}
+		}
+	}
+	
+	private void clearBatches() {
+		for (Batch batch : batches) {
+			batch.lock.lock();
+			batch.builds.clear();
+			batch.lock.unlock();
+		}
+	}
+	
+	/*
+	 * Keeps the build if it beats the lowest value build, which it replaces
+	 * once the heap is full. The lock must be held.
+	 */
+	private void admit(Build build) {
+		if (build.getValue() <= threshold) { return; }
+		
+		// Searches other than the walk may submit the same build more than once
+		Key key = new Key(build);
+		if (!members.add(key)) { return; }
+		
+		// Order the build constellations from least to most requirements
+		List<Constellation> orderedConstellations = new ArrayList<Constellation>(
+				build.getConstellations());
+		Collections.sort(orderedConstellations, new Comparator<Constellation>() {
+			public int compare(Constellation c1, Constellation c2) {
+				return c1.getRequirement().total() - c2.getRequirement().total();
+			}
+		});
+		build = new Build(orderedConstellations, key.partials, build.getValue());
 		
-		if (value > topBuilds.get(0).getValue()) {
+		if (size < heap.length) {
+			heap[size] = build;
+			keys[size] = key;
+			siftUp(size++);
+		} else {
+			members.remove(keys[0]);
+			heap[0] = build;
+			keys[0] = key;
+			siftDown(0);
+		}
+		if (size == heap.length) {
+			threshold = heap[0].getValue();
+		}
+	}
+	
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (heap[parent].getValue() <= heap[i].getValue()) { return; }
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	
+	private void siftDown(int i) {
+		while (true) {
+			int least = i;
+			for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+				if (heap[child].getValue() < heap[least].getValue()) {
+					least = child;
+				}
+			}
+			if (least == i) { return; }
+			swap(i, least);
+			i = least;
+		}
+	}
+	
+	private void swap(int i, int j) {
+		Build build = heap[i];
+		heap[i] = heap[j];
+		heap[j] = build;
+		Key key = keys[i];
+		keys[i] = keys[j];
+		keys[j] = key;
+	}
+	
+	/**
+	 * Submits a build found by a walk that only takes equivalent
+	 *  constellations in order, along with every build equivalent to it. They
+	 *  all have the same value, so no more of them can enter than there are
+	 *  top builds, and this stops there or once they no longer enter.
+	 */
+	public void submit(Collection<Constellation> constellations,
+			Map<Constellation, Integer> partials, final double value,
+			EquivalentConstellations equivalents) {
+		if (value <= threshold) { return; }
+		equivalents.forEachEquivalent(constellations, partials,
+				new EquivalentConstellations.Consumer() {
+			private int submitted = 0;
 			
-			// Order the build constellations from least to most requirements
-			List<Constellation> orderedConstellations = new ArrayList<Constellation>(constellations);
-			Collections.sort(orderedConstellations, new Comparator<Constellation>() {
-				public int compare(Constellation c1, Constellation c2) {
-					return c1.getRequirement().total() - c2.getRequirement().total();
+			public boolean accept(List<Constellation> constellations,
+					Map<Constellation, Integer> partials) {
+				submit(constellations, partials, value);
+				return ++submitted < maxBuilds && value > threshold;
+			}
+		});
+	}
+	
+	/**
+	 * @return the value a submitted build must exceed to enter the top
+	 *  builds. It is raised as batches are merged, so it may lag the builds
+	 *  submitted since.
+	 */
+	public double getThreshold() {
+		return threshold;
+	}
+	
+	/**
+	 * @return the most builds kept
+	 */
+	public int getMaxBuilds() {
+		return maxBuilds;
+	}
+	
+	/**
+	 * Writes every top build, with its partial constellations, by ordinal.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException {
+		mergeBatches();
+		lock.lock();
+		try {
+			out.writeInt(size);
+			for (int i = 0; i < size; i++) {
+				Build build = heap[i];
+				out.writeDouble(build.getValue());
+				out.writeInt(build.getConstellations().size());
+				for (Constellation c : build.getConstellations()) {
+					out.writeInt(c.getOrdinal());
+				}
+				out.writeInt(build.getPartials().size());
+				for (Map.Entry<Constellation, Integer> partial : build.getPartials().entrySet()) {
+					out.writeInt(partial.getKey().getOrdinal());
+					out.writeInt(partial.getValue());
 				}
-			});
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Replaces the top builds with those written by writeTo(), keeping as
+	 *  many of the best of them as this keeps.
+	 * 
+	 * @param byOrdinal: the constellations the builds were made from, indexed by ordinal
+	 */
+	public void readFrom(DataInputStream in, Constellation[] byOrdinal) throws IOException {
+		int numBuilds = in.readInt();
+		List<Build> builds = new ArrayList<Build>(numBuilds);
+		for (int i = 0; i < numBuilds; i++) {
+			double value = in.readDouble();
+			
+			int numConstellations = in.readInt();
+			List<Constellation> constellations = new ArrayList<Constellation>(numConstellations);
+			for (int j = 0; j < numConstellations; j++) {
+				constellations.add(constellation(in.readInt(), byOrdinal));
+			}
 			
-			// Replace the lowest value build with the new top build
-			topBuilds.set(0, new Build(
-					orderedConstellations,
-					new HashMap<Constellation, Integer>(partials),
-					value));
+			int numPartials = in.readInt();
+			Map<Constellation, Integer> partials = new HashMap<Constellation, Integer>();
+			for (int j = 0; j < numPartials; j++) {
+				Constellation c = constellation(in.readInt(), byOrdinal);
+				partials.put(c, in.readInt());
+			}
 			
-			// Re-sort the build list from lowest to highest value
-			Collections.sort(topBuilds);
+			builds.add(new Build(constellations, partials, value));
 		}
 		
-		lock.unlock();
+		reset(maxBuilds);
+		lock.lock();
+		try {
+			for (Build build : builds) {
+				admit(build);
+			}
+		} finally {
+			lock.unlock();
+		}
 	}
 	
+	private static Constellation constellation(int ordinal, Constellation[] byOrdinal)
+			throws IOException {
+		if (ordinal < 0 || ordinal >= byOrdinal.length) {
+			throw new IOException("Top builds do not match the constellations");
+		}
+		return byOrdinal[ordinal];
+	}
+	
+	/**
+	 * @return the top builds, from highest to lowest value
+	 */
 	public List<Build> getBuilds() {
+		mergeBatches();
+		List<Build> highToLow;
 		lock.lock();
-		List<Build> highToLow = new ArrayList<Build>(topBuilds);
-		lock.unlock();
+		try {
+			highToLow = new ArrayList<Build>(Arrays.asList(heap).subList(0, size));
+		} finally {
+			lock.unlock();
+		}
 		
-		Collections.reverse(highToLow);
+		Collections.sort(highToLow, Collections.reverseOrder());
 		return highToLow;
 	}
 }
@@ -0,0 +1,243 @@
+package gdbuildmaker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A concurrent set of builds, where each build is a fixed number of long words
+ * of constellation bits (see ConstellationSet). Builds are stored inline in
+ * striped open-addressing tables, so no object is allocated per entry and an
+ * entry costs width * 8 bytes divided by the load factor.
+ */
+public class VisitedBuildSet implements VisitedBuilds {
+	private static final int STRIPE_BITS = 7;
+	private static final int STRIPES = 1 << STRIPE_BITS;
+	private static final int INITIAL_STRIPE_CAPACITY = 64;
+	private static final double MAX_LOAD = 0.75;
+
+	/*
+	 * One lock-protected open-addressing table. An all-zero slot is empty, so
+	 * the empty build is tracked with a separate flag.
+	 */
+	private final class Stripe {
+		private long[] table;
+		private int capacity;
+		private int count;
+		private boolean containsEmpty;
+
+		private Stripe() {
+			capacity = INITIAL_STRIPE_CAPACITY;
+			table = new long[capacity * width];
+			count = 0;
+			containsEmpty = false;
+		}
+
+		private synchronized boolean add(long[] bits, int hash) {
+			if (isEmpty(bits)) {
+				if (containsEmpty) { return false; }
+				containsEmpty = true;
+				return true;
+			}
+
+			if (insert(table, capacity, bits, hash)) {
+				if (++count > capacity * MAX_LOAD) {
+					grow();
+				}
+				return true;
+			}
+			return false;
+		}
+
+		private synchronized boolean contains(long[] bits, int hash) {
+			if (isEmpty(bits)) { return containsEmpty; }
+
+			int mask = capacity - 1;
+			for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+				int base = slot * width;
+				if (isEmptySlot(table, base)) { return false; }
+				if (slotEquals(table, base, bits)) { return true; }
+			}
+		}
+
+		private void grow() {
+			int newCapacity = capacity << 1;
+			long[] newTable = new long[newCapacity * width];
+			long[] entry = new long[width];
+			for (int slot = 0; slot < capacity; slot++) {
+				int base = slot * width;
+				if (!isEmptySlot(table, base)) {
+					System.arraycopy(table, base, entry, 0, width);
+					insert(newTable, newCapacity, entry, hash(entry));
+				}
+			}
+			table = newTable;
+			capacity = newCapacity;
+		}
+	}
+
+	private final int width;
+	private final Stripe[] stripes;
+	private final LongAdder size;
+
+	/**
+	 * @param width: number of long words in each build
+	 */
+	public VisitedBuildSet(int width) {
+		this.width = width;
+		stripes = new Stripe[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Stripe();
+		}
+		size = new LongAdder();
+	}
+
+	/**
+	 * Adds a copy of the build's bits to the set.
+	 *
+	 * @return true if the build was not already in the set
+	 */
+	public boolean add(long[] bits) {
+		int hash = hash(bits);
+		if (stripes[hash >>> (32 - STRIPE_BITS)].add(bits, hash)) {
+			size.increment();
+			return true;
+		}
+		return false;
+	}
+
+	public boolean contains(long[] bits) {
+		int hash = hash(bits);
+		return stripes[hash >>> (32 - STRIPE_BITS)].contains(bits, hash);
+	}
+
+	public long size() {
+		return size.sum();
+	}
+
+	public void writeTo(DataOutputStream out) throws IOException {
+		out.writeInt(width);
+		out.writeLong(size());
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				if (stripe.containsEmpty) {
+					for (int i = 0; i < width; i++) {
+						out.writeLong(0L);
+					}
+				}
+				for (int slot = 0; slot < stripe.capacity; slot++) {
+					int base = slot * width;
+					if (!isEmptySlot(stripe.table, base)) {
+						for (int i = 0; i < width; i++) {
+							out.writeLong(stripe.table[base + i]);
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	public void readFrom(DataInputStream in) throws IOException {
+		if (in.readInt() != width) {
+			throw new IOException("Visited builds have a different width");
+		}
+		long count = in.readLong();
+		long[] bits = new long[width];
+		for (long n = 0; n < count; n++) {
+			for (int i = 0; i < width; i++) {
+				bits[i] = in.readLong();
+			}
+			add(bits);
+		}
+	}
+	
+	/**
+	 * Receives the builds of a set, see forEach()
+	 */
+	interface Visitor {
+		/**
+		 * @param words: holds the build's words from offset on, only until
+		 *  this returns
+		 */
+		void visit(long[] words, int offset) throws IOException;
+	}
+	
+	/**
+	 * Passes every build in the set to the visitor, straight from the
+	 * tables. The set must not be modified meanwhile.
+	 */
+	void forEach(Visitor visitor) throws IOException {
+		long[] empty = new long[width];
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				if (stripe.containsEmpty) {
+					visitor.visit(empty, 0);
+				}
+				for (int slot = 0; slot < stripe.capacity; slot++) {
+					int base = slot * width;
+					if (!isEmptySlot(stripe.table, base)) {
+						visitor.visit(stripe.table, base);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Approximate number of bytes held by the tables of the set.
+	 */
+	public long bytesUsed() {
+		long bytes = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				bytes += 8L * stripe.table.length;
+			}
+		}
+		return bytes;
+	}
+
+	private boolean insert(long[] table, int capacity, long[] bits, int hash) {
+		int mask = capacity - 1;
+		for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+			int base = slot * width;
+			if (isEmptySlot(table, base)) {
+				System.arraycopy(bits, 0, table, base, width);
+				return true;
+			}
+			if (slotEquals(table, base, bits)) { return false; }
+		}
+	}
+
+	private boolean isEmpty(long[] bits) {
+		for (int i = 0; i < width; i++) {
+			if (bits[i] != 0L) { return false; }
+		}
+		return true;
+	}
+
+	private boolean isEmptySlot(long[] table, int base) {
+		for (int i = 0; i < width; i++) {
+			if (table[base + i] != 0L) { return false; }
+		}
+		return true;
+	}
+
+	private boolean slotEquals(long[] table, int base, long[] bits) {
+		for (int i = 0; i < width; i++) {
+			if (table[base + i] != bits[i]) { return false; }
+		}
+		return true;
+	}
+
+	private int hash(long[] bits) {
+		long h = 0x9E3779B97F4A7C15L;
+		for (int i = 0; i < width; i++) {
+			h = (h ^ bits[i]) * 0xBF58476D1CE4E5B9L;
+			h ^= h >>> 31;
+		}
+		h *= 0x94D049BB133111EBL;
+		h ^= h >>> 29;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,47 @@
+package gdbuildmaker;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Record of the builds a BuildWalker has already visited. Builds are given as
+ * the backing words of a ConstellationSet, all of the same width.
+ */
+public interface VisitedBuilds {
+	/**
+	 * Marks a build as visited.
+	 * 
+	 * @return true if the build had not been visited before
+	 */
+	public boolean add(long[] bits);
+	
+	/**
+	 * Number of builds visited so far.
+	 */
+	public long size();
+	
+	/**
+	 * Number of bytes of visited builds kept on disk, rather than on the heap.
+	 */
+	public default long bytesOnDisk() {
+		return 0L;
+	}
+	
+	/**
+	 * Writes every visited build, so that readFrom() can restore them. No
+	 * builds may be added meanwhile.
+	 */
+	public void writeTo(DataOutputStream out) throws IOException;
+	
+	/**
+	 * Adds the builds written by writeTo() of a set of the same kind and width.
+	 */
+	public void readFrom(DataInputStream in) throws IOException;
+	
+	/**
+	 * Releases any resources held outside the heap. The set must not be used
+	 * afterwards.
+	 */
+	public default void close() {}
+}
@@ -0,0 +1,444 @@
+package gdbuildmaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Coordinates a canonical walk shared between worker processes (see
+ * WalkWorker) over TCP. The walk is split into work units by prefix (see
+ * BuildWalker.workUnits()), and each worker is given a unit whenever it asks
+ * for one. A worker reports a unit together with its top builds, which are
+ * merged into the coordinator's TopBuilds; workers keep as many top builds
+ * as it does. A unit whose worker is lost before
+ * reporting it is given out again, so every unit is counted exactly once.
+ *
+ * Each worker prunes against its own top builds, which it keeps across units.
+ * Workers send a heartbeat every HEARTBEAT_MILLIS, and one that sends nothing
+ * for HEARTBEAT_TIMEOUT_MILLIS is dropped as lost, so a hung worker or host
+ * doesn't hold its unit until the connection fails.
+ *
+ * Workers are not authenticated, so the coordinator listens on the loopback
+ * address unless told to bind another; workers on other hosts need it to.
+ *
+ * Usage: WalkCoordinator gameDir profile.csv outputFile [options]
+ *   --port N       port to listen on (default 7077)
+ *   --bind ADDRESS address to listen on (default loopback)
+ *   --units N      split the walk into at least N units (default 1000)
+ *   --pruning      prune units with branch-and-bound
+ *   --symmetric    walk interchangeable constellations in one order only
+ *   --top N        top builds to keep and write (default 100)
+ */
+public class WalkCoordinator implements BuildSearch {
+	public static final int DEFAULT_PORT = 7077;
+	public static final int DEFAULT_UNITS = 1000;
+	private static final long POLL_MILLIS = 1000;
+
+	static final int PROTOCOL_MAGIC = 0x47445744; // "GDWD"
+	static final int PROTOCOL_VERSION = 3;
+
+	// A worker sends a heartbeat this often, and is lost once it has sent
+	// nothing for the timeout
+	static final int HEARTBEAT_MILLIS = 10_000;
+	static final int HEARTBEAT_TIMEOUT_MILLIS = 3 * HEARTBEAT_MILLIS;
+
+	// Messages from a worker: asks for a unit, or reports one and asks for the
+	// next, or shows it is alive
+	static final byte MSG_READY = 0;
+	static final byte MSG_RESULT = 1;
+	static final byte MSG_HEARTBEAT = 6;
+
+	// Messages to a worker: the job, or a refusal, then units until done
+	static final byte MSG_JOB = 2;
+	static final byte MSG_REJECT = 3;
+	static final byte MSG_UNIT = 4;
+	static final byte MSG_DONE = 5;
+
+	private final Constellation[] byOrdinal;
+	private final long fingerprint;
+	private final Map<String, Double> effectWeights;
+	private final TopBuilds topBuilds;
+	private final boolean pruning;
+	private final boolean symmetric;
+
+	// Units by id, and which of them are waiting to be given out or done.
+	// Guarded by this.
+	private final List<BuildWalker.WorkUnit> units;
+	private final Deque<Integer> pending;
+	private final boolean[] done;
+	private int numDone;
+	private long buildsEnumerated;
+	private long nodesPruned;
+
+	private final ServerSocket serverSocket;
+	private final Set<Socket> workers;
+	private volatile boolean running;
+
+	/**
+	 * Splits the walk and binds the port on the loopback address only, ready
+	 *  for start().
+	 *
+	 * @param port: port to listen on, or 0 for any free port
+	 * @param minUnits: the walk is split into at least this many units, if
+	 *  it has that many builds
+	 */
+	public WalkCoordinator(List<Constellation> constellations, Map<String, Double> effectWeights,
+			TopBuilds topBuilds, int port, int minUnits, boolean pruning, boolean symmetric)
+			throws IOException {
+		this(constellations, effectWeights, topBuilds, InetAddress.getLoopbackAddress(), port,
+				minUnits, pruning, symmetric);
+	}
+
+	/**
+	 * Splits the walk and binds the port, ready for start().
+	 *
+	 * @param bindAddress: address to listen on, any other than loopback lets
+	 *  other hosts join the walk
+	 */
+	public WalkCoordinator(List<Constellation> constellations, Map<String, Double> effectWeights,
+			TopBuilds topBuilds, InetAddress bindAddress, int port, int minUnits, boolean pruning,
+			boolean symmetric) throws IOException {
+		this.fingerprint = Controller.datasetFingerprint(constellations);
+		this.effectWeights = effectWeights;
+		this.topBuilds = topBuilds;
+		this.pruning = pruning;
+		this.symmetric = symmetric;
+
+		byOrdinal = new Constellation[constellations.size()];
+		for (Constellation c : constellations) {
+			byOrdinal[c.getOrdinal()] = c;
+		}
+
+		// Workers split the same way, so only the units' prefixes need to be sent
+		BuildWalker splitter = new BuildWalker.Builder(
+				Controller.constellationValues(constellations, effectWeights),
+				Controller.starValues(constellations, effectWeights),
+				new TopBuilds(topBuilds.getMaxBuilds()))
+				.canonical(true)
+				.symmetric(symmetric)
+				.build();
+		units = splitter.workUnits(minUnits);
+		pending = new ArrayDeque<Integer>();
+		for (int id = 0; id < units.size(); id++) {
+			pending.add(id);
+		}
+		done = new boolean[units.size()];
+		numDone = 0;
+		buildsEnumerated = 0L;
+		nodesPruned = 0L;
+
+		serverSocket = new ServerSocket();
+		serverSocket.bind(new InetSocketAddress(bindAddress, port));
+		workers = ConcurrentHashMap.newKeySet();
+		running = false;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: WalkCoordinator gameDir profile.csv outputFile"
+					+ " [--port N] [--bind ADDRESS] [--units N] [--pruning] [--symmetric] [--top N]");
+			System.exit(2);
+		}
+
+		int port = DEFAULT_PORT;
+		InetAddress bindAddress = InetAddress.getLoopbackAddress();
+		int minUnits = DEFAULT_UNITS;
+		boolean pruning = false;
+		boolean symmetric = false;
+		int topBuildsSize = TopBuilds.DEFAULT_SIZE;
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+			case "--port":
+				port = Integer.parseInt(args[++i]);
+				break;
+			case "--bind":
+				bindAddress = InetAddress.getByName(args[++i]);
+				break;
+			case "--units":
+				minUnits = Integer.parseInt(args[++i]);
+				break;
+			case "--pruning":
+				pruning = true;
+				break;
+			case "--symmetric":
+				symmetric = true;
+				break;
+			case "--top":
+				topBuildsSize = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		ConstellationLoader loader = new ConstellationLoader();
+		List<Constellation> constellations = loader.loadConstellations(args[0]);
+		for (String error : loader.getErrors()) {
+			System.err.println(error);
+		}
+		if (constellations.isEmpty()) {
+			System.err.println("No constellations found in " + args[0]);
+			System.exit(1);
+		}
+
+		TopBuilds topBuilds = new TopBuilds(topBuildsSize);
+		WalkCoordinator coordinator = new WalkCoordinator(constellations,
+				EffectWeights.read(new File(args[1])), topBuilds, bindAddress, port, minUnits,
+				pruning, symmetric);
+		System.out.println("Waiting for workers on " + bindAddress.getHostAddress()
+				+ ":" + coordinator.getPort()
+				+ " with " + coordinator.getNumUnits() + " units");
+
+		long startTime = System.currentTimeMillis();
+		coordinator.start(0);
+		while (!coordinator.isFinished()) {
+			Thread.sleep(POLL_MILLIS);
+			System.out.println(String.format("%d of %d units, %d builds",
+					coordinator.getUnitsDone(), coordinator.getNumUnits(),
+					coordinator.getIterations()));
+		}
+		coordinator.stop();
+		long elapsed = System.currentTimeMillis() - startTime;
+
+		try (PrintWriter writer = new PrintWriter(new File(args[2]))) {
+			writer.println("# Profile: " + new File(args[1]).getName());
+			writer.println(String.format("# Builds: %d in %.1fs, %d units",
+					coordinator.getIterations(), elapsed / 1000.0, coordinator.getNumUnits()));
+			for (Build build : topBuilds.getBuilds()) {
+				if (build.getValue() > 0) {
+					writer.println(build);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts accepting workers. The walking is done by the workers, so the
+	 *  number of threads is not used.
+	 */
+	public void start(int numThreads) {
+		running = true;
+		Thread acceptor = new Thread(new Runnable() {
+			public void run() {
+				acceptWorkers();
+			}
+		}, "WalkCoordinator");
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	/**
+	 * Starts accepting workers. The walking is done by the workers, so the
+	 *  pool is not used.
+	 */
+	public void start(ForkJoinPool pool) {
+		start(0);
+	}
+
+	/**
+	 * Stops accepting workers and drops the connected ones. Units that were
+	 *  not reported stay undone.
+	 */
+	public void stop() {
+		running = false;
+		try {
+			serverSocket.close();
+		} catch (IOException e) {}
+		for (Socket worker : workers) {
+			try {
+				worker.close();
+			} catch (IOException e) {}
+		}
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	/**
+	 * @return true once every unit has been reported
+	 */
+	public synchronized boolean isFinished() {
+		return numDone == units.size();
+	}
+
+	/**
+	 * Number of valid builds enumerated by the reported units.
+	 */
+	public synchronized long getIterations() {
+		return buildsEnumerated;
+	}
+
+	public synchronized long getNodesPruned() {
+		return nodesPruned;
+	}
+
+	public int getNumUnits() {
+		return units.size();
+	}
+
+	public synchronized int getUnitsDone() {
+		return numDone;
+	}
+
+	public int getNumWorkers() {
+		return workers.size();
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	private void acceptWorkers() {
+		while (running) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+			} catch (IOException e) {
+				// Closed by stop()
+				return;
+			}
+			workers.add(socket);
+			Thread handler = new Thread(new Runnable() {
+				public void run() {
+					serve(socket);
+				}
+			}, "WalkCoordinator " + socket.getRemoteSocketAddress());
+			handler.setDaemon(true);
+			handler.start();
+		}
+	}
+
+	/*
+	 * Talks to one worker until there are no units left or it is lost, then
+	 * gives back the unit it held, if any. A read that times out for want of
+	 * heartbeats loses the worker like any other failed read.
+	 */
+	private void serve(Socket socket) {
+		int unit = -1;
+		try {
+			socket.setKeepAlive(true);
+			socket.setSoTimeout(HEARTBEAT_TIMEOUT_MILLIS);
+			// Messages are flushed whole, so don't hold back their last segment
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+
+			if (in.readInt() != PROTOCOL_MAGIC || in.readInt() != PROTOCOL_VERSION
+					|| in.readLong() != fingerprint) {
+				out.writeByte(MSG_REJECT);
+				out.flush();
+				return;
+			}
+			out.writeByte(MSG_JOB);
+			out.writeInt(effectWeights.size());
+			for (Map.Entry<String, Double> weight : effectWeights.entrySet()) {
+				out.writeUTF(weight.getKey());
+				out.writeDouble(weight.getValue());
+			}
+			out.writeBoolean(pruning);
+			out.writeBoolean(symmetric);
+			out.writeInt(topBuilds.getMaxBuilds());
+			out.flush();
+
+			while (running) {
+				byte message = in.readByte();
+				if (message == MSG_HEARTBEAT) {
+					continue;
+				}
+				if (message == MSG_RESULT) {
+					if (in.readInt() != unit) {
+						throw new IOException("Worker reported a unit it was not given");
+					}
+					long enumerated = in.readLong();
+					long pruned = in.readLong();
+					TopBuilds workerBuilds = new TopBuilds(topBuilds.getMaxBuilds());
+					workerBuilds.readFrom(in, byOrdinal);
+					for (Build build : workerBuilds.getBuilds()) {
+						topBuilds.submit(build.getConstellations(), build.getPartials(),
+								build.getValue());
+					}
+					complete(unit, enumerated, pruned);
+					unit = -1;
+				} else if (message != MSG_READY) {
+					throw new IOException("Unexpected message " + message);
+				}
+
+				unit = nextUnit();
+				if (unit < 0) {
+					out.writeByte(MSG_DONE);
+					out.flush();
+					return;
+				}
+				int[] prefix = units.get(unit).getPrefix();
+				out.writeByte(MSG_UNIT);
+				out.writeInt(unit);
+				out.writeInt(prefix.length);
+				for (int position : prefix) {
+					out.writeInt(position);
+				}
+				out.writeBoolean(units.get(unit).isSubtree());
+				out.flush();
+			}
+		} catch (IOException e) {
+			// The worker is lost
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (unit >= 0) {
+				giveBack(unit);
+			}
+			workers.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/*
+	 * Takes a unit to give out. While none are waiting but some are still
+	 * out with other workers, waits in case one of those workers is lost.
+	 *
+	 * @return the unit's id, or -1 once every unit is done
+	 */
+	private synchronized int nextUnit() throws InterruptedException {
+		while (pending.isEmpty() && numDone < units.size() && running) {
+			wait();
+		}
+		return pending.isEmpty() ? -1 : pending.poll();
+	}
+
+	private synchronized void complete(int unit, long enumerated, long pruned) {
+		if (!done[unit]) {
+			done[unit] = true;
+			numDone++;
+			buildsEnumerated += enumerated;
+			nodesPruned += pruned;
+		}
+		notifyAll();
+	}
+
+	private synchronized void giveBack(int unit) {
+		if (!done[unit]) {
+			pending.addFirst(unit);
+		}
+		notifyAll();
+	}
+}
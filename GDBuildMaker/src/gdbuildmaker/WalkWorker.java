@@ -0,0 +1,193 @@
+package gdbuildmaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A worker process of a distributed walk. It connects to a WalkCoordinator
+ * with the same constellations loaded, takes the job's effect weights and
+ * options, and walks the units it is given on a pool of its own until the
+ * coordinator has none left. After each unit it reports the unit's counts and
+ * its top builds so far. A heartbeat is sent while it works, so the
+ * coordinator can tell a slow unit from a hung worker.
+ *
+ * Usage: WalkWorker host port gameDir [--threads N]
+ */
+public class WalkWorker {
+	private final List<Constellation> constellations;
+	private final int threads;
+
+	public WalkWorker(List<Constellation> constellations, int threads) {
+		this.constellations = constellations;
+		this.threads = threads;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length < 3) {
+			System.err.println("Usage: WalkWorker host port gameDir [--threads N]");
+			System.exit(2);
+		}
+
+		int threads = Controller.BUILDWALKER_THREADS;
+		for (int i = 3; i < args.length; i++) {
+			switch (args[i]) {
+			case "--threads":
+				threads = Integer.parseInt(args[++i]);
+				break;
+			default:
+				System.err.println("Unknown option " + args[i]);
+				System.exit(2);
+			}
+		}
+
+		ConstellationLoader loader = new ConstellationLoader();
+		List<Constellation> constellations = loader.loadConstellations(args[2]);
+		for (String error : loader.getErrors()) {
+			System.err.println(error);
+		}
+		if (constellations.isEmpty()) {
+			System.err.println("No constellations found in " + args[2]);
+			System.exit(1);
+		}
+
+		int walked = new WalkWorker(constellations, threads).run(args[0], Integer.parseInt(args[1]));
+		System.out.println("Walked " + walked + " units");
+	}
+
+	/**
+	 * Works for the coordinator at host:port until it has no units left.
+	 *
+	 * @return the number of units walked
+	 * @throws IOException if the coordinator refuses the worker, or the
+	 *  connection fails
+	 */
+	public int run(String host, int port) throws IOException, InterruptedException {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setKeepAlive(true);
+			// Messages are flushed whole, so don't hold back their last segment
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(socket.getInputStream()));
+			final DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(socket.getOutputStream()));
+
+			out.writeInt(WalkCoordinator.PROTOCOL_MAGIC);
+			out.writeInt(WalkCoordinator.PROTOCOL_VERSION);
+			out.writeLong(Controller.datasetFingerprint(constellations));
+			out.flush();
+			if (in.readByte() != WalkCoordinator.MSG_JOB) {
+				throw new IOException("The coordinator has different constellations loaded");
+			}
+			Map<String, Double> effectWeights = new LinkedHashMap<String, Double>();
+			int numWeights = in.readInt();
+			for (int i = 0; i < numWeights; i++) {
+				String effect = in.readUTF();
+				effectWeights.put(effect, in.readDouble());
+			}
+			boolean pruning = in.readBoolean();
+			boolean symmetric = in.readBoolean();
+			int topBuildsSize = in.readInt();
+			if (topBuildsSize < 1) {
+				throw new IOException("The job keeps no top builds");
+			}
+
+			// Top builds carry on across units, so later units prune against earlier ones
+			TopBuilds topBuilds = new TopBuilds(topBuildsSize);
+			BuildWalker walker = new BuildWalker.Builder(
+					Controller.constellationValues(constellations, effectWeights),
+					Controller.starValues(constellations, effectWeights), topBuilds)
+					.canonical(true)
+					.pruning(pruning)
+					.symmetric(symmetric)
+					.build();
+
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			ScheduledExecutorService heartbeat = startHeartbeat(out);
+			try {
+				int walked = 0;
+				synchronized (out) {
+					out.writeByte(WalkCoordinator.MSG_READY);
+					out.flush();
+				}
+				while (true) {
+					byte message = in.readByte();
+					if (message == WalkCoordinator.MSG_DONE) { return walked; }
+					if (message != WalkCoordinator.MSG_UNIT) {
+						throw new IOException("Unexpected message " + message);
+					}
+
+					int id = in.readInt();
+					int length = in.readInt();
+					if (length < 0 || length > constellations.size()) {
+						throw new IOException("Work unit does not match the constellations");
+					}
+					int[] prefix = new int[length];
+					for (int d = 0; d < length; d++) {
+						prefix[d] = in.readInt();
+					}
+					BuildWalker.WorkUnit unit = new BuildWalker.WorkUnit(prefix, in.readBoolean());
+
+					long enumerated = walker.getBuildsVisited();
+					long pruned = walker.getNodesPruned();
+					try {
+						walker.walkUnit(unit, pool);
+					} catch (IllegalArgumentException e) {
+						throw new IOException(e.getMessage());
+					}
+					walked++;
+
+					synchronized (out) {
+						out.writeByte(WalkCoordinator.MSG_RESULT);
+						out.writeInt(id);
+						out.writeLong(walker.getBuildsVisited() - enumerated);
+						out.writeLong(walker.getNodesPruned() - pruned);
+						topBuilds.writeTo(out);
+						out.flush();
+					}
+				}
+			} finally {
+				heartbeat.shutdownNow();
+				pool.shutdownNow();
+			}
+		}
+	}
+
+	/*
+	 * Sends a heartbeat every WalkCoordinator.HEARTBEAT_MILLIS between the
+	 * other messages. A failed send is left for the next read or write of
+	 * the connection to report.
+	 */
+	private ScheduledExecutorService startHeartbeat(final DataOutputStream out) {
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread t = new Thread(runnable, "walk-worker-heartbeat");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		heartbeat.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					synchronized (out) {
+						out.writeByte(WalkCoordinator.MSG_HEARTBEAT);
+						out.flush();
+					}
+				} catch (IOException e) {}
+			}
+		}, WalkCoordinator.HEARTBEAT_MILLIS, WalkCoordinator.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+		return heartbeat;
+	}
+}
@@ -1,4 +1,4 @@
-package gdbuildmaker;
+package gdbuildmaker.ui;
 
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
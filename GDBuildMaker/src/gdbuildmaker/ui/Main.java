@@ -1,15 +1,20 @@
-package gdbuildmaker;
+package gdbuildmaker.ui;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
+import gdbuildmaker.Build;
+import gdbuildmaker.BuildSearch;
+import gdbuildmaker.Constellation;
+import gdbuildmaker.Controller;
+import gdbuildmaker.EffectWeights;
+import gdbuildmaker.Star;
+
 import javafx.application.Application;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
@@ -38,6 +43,7 @@ public class Main extends Application {
 	
 	Stage primaryStage;
 	FileChooser fileChooser;
+	FileChooser checkpointChooser;
 	
 	Controller model;
 	TabPane tabPane;
@@ -51,7 +57,15 @@ public class Main extends Application {
 	
 	TextField buildsVisitedField;
 	TextField buildsPerSecondField;
+	TextField visitedStoreField;
 	TextArea topBuildsField;
+	Button pauseButton;
+	ComboBox<BuildSearch.Strategy> strategyComboBox;
+	Button autoCheckpointButton;
+	TextField checkpointIntervalField;
+	
+	// File walks are periodically checkpointed to, or null
+	File autoCheckpointFile;
 	
 	private class EffectWeight {
 		public String effect = null;
@@ -157,15 +171,32 @@ public class Main extends Application {
 		}
 		
 		private List<Build> lastTopBuilds = new ArrayList<Build>();
-		private int lastBuildsVisited = 0;
+		private long lastBuildsVisited = 0;
 		private void updateUI() {
 			// Take a snapshot of builds visited, as it changes rapidly
-			int newBuildsVisited = model.getBuildsVisited();
-			buildsVisitedField.setText(Integer.toString(newBuildsVisited));
+			long newBuildsVisited = model.getBuildsVisited();
+			buildsVisitedField.setText(Long.toString(newBuildsVisited));
 			buildsPerSecondField.setText(
-					Integer.toString(newBuildsVisited-lastBuildsVisited));
+					Long.toString(newBuildsVisited-lastBuildsVisited));
 			lastBuildsVisited = newBuildsVisited;
 			
+			if (model.isCanonicalMode()) {
+				visitedStoreField.setText("None, builds are enumerated in canonical order");
+			} else if (!model.isWalking()) {
+				visitedStoreField.setText("None, builds are searched heuristically");
+			} else if (model.isVisitedFilterMode()) {
+				visitedStoreField.setText(String.format(
+						"Approximate, capacity: %d, fill: %.1f%%, false positives: %.4f%%",
+						model.getVisitedFilterCapacity(),
+						100 * model.getVisitedFilterFillRatio(),
+						100 * model.getVisitedFilterFalsePositiveRate()));
+			} else if (model.isSpillingMode()) {
+				visitedStoreField.setText(String.format("Exact, %d MB on disk",
+						model.getVisitedBytesOnDisk() / (1024 * 1024)));
+			} else {
+				visitedStoreField.setText("Exact, on the heap");
+			}
+			
 			if (!lastTopBuilds.equals(model.getTopBuilds())) {
 				StringBuilder builder = new StringBuilder();
 				for (Build build : model.getTopBuilds()) {
@@ -187,6 +218,9 @@ public class Main extends Application {
 			fileChooser = new FileChooser();
 			fileChooser.getExtensionFilters().add(
 					new FileChooser.ExtensionFilter("CSV Files (*.csv)", "*.csv"));
+			checkpointChooser = new FileChooser();
+			checkpointChooser.getExtensionFilters().add(
+					new FileChooser.ExtensionFilter("Checkpoints (*.ckpt)", "*.ckpt"));
 			
 			model = new Controller();
 			effectsList = FXCollections.observableArrayList();
@@ -324,11 +358,44 @@ public class Main extends Application {
 			}
 		});
 		
+		Button resumeButton = new Button();
+		resumeButton.setText("Resume Checkpoint");
+		resumeButton.setOnAction(new EventHandler<ActionEvent>() {
+			public void handle(ActionEvent ae) {
+				handleResumeCheckpointButton();
+			}
+		});
+		
+		autoCheckpointButton = new Button();
+		autoCheckpointButton.setText("Checkpoint To...");
+		autoCheckpointButton.setOnAction(new EventHandler<ActionEvent>() {
+			public void handle(ActionEvent ae) {
+				handleAutoCheckpointButton();
+			}
+		});
+		
+		Text checkpointIntervalLabel = new Text("every");
+		checkpointIntervalField = new TextField("300");
+		checkpointIntervalField.setPrefColumnCount(4);
+		Text checkpointSecondsLabel = new Text("sec");
+		
 		buttonBarLeft.getChildren().add(valueButton);
 		buttonBarLeft.getChildren().add(loadButton);
 		buttonBarLeft.getChildren().add(saveButton);
+		strategyComboBox = new ComboBox<BuildSearch.Strategy>(
+				FXCollections.observableArrayList(BuildSearch.Strategy.values()));
+		strategyComboBox.setValue(BuildSearch.Strategy.WALK);
+		
+		HBox buttonBarRight = new HBox(4);
+		buttonBarRight.getChildren().add(autoCheckpointButton);
+		buttonBarRight.getChildren().add(checkpointIntervalLabel);
+		buttonBarRight.getChildren().add(checkpointIntervalField);
+		buttonBarRight.getChildren().add(checkpointSecondsLabel);
+		buttonBarRight.getChildren().add(strategyComboBox);
+		buttonBarRight.getChildren().add(resumeButton);
+		buttonBarRight.getChildren().add(runButton);
 		buttonBar.setLeft(buttonBarLeft);
-		buttonBar.setRight(runButton);
+		buttonBar.setRight(buttonBarRight);
 
 		// Organize everything in a vertical box
 		VBox valuePane = new VBox(8);
@@ -361,12 +428,41 @@ public class Main extends Application {
 			}
 		});
 		
+		pauseButton = new Button();
+		pauseButton.setText("Pause Run");
+		pauseButton.setOnAction(new EventHandler<ActionEvent>() {
+			@Override
+			public void handle(ActionEvent ae) {
+				handlePauseButton();
+			}
+		});
+		
+		Button checkpointButton = new Button();
+		checkpointButton.setText("Save Checkpoint");
+		checkpointButton.setOnAction(new EventHandler<ActionEvent>() {
+			@Override
+			public void handle(ActionEvent ae) {
+				handleSaveCheckpointButton();
+			}
+		});
+		
+		Text visitedStoreLabel = new Text("Visited Store:");
+		visitedStoreField = new TextField();
+		visitedStoreField.editableProperty().set(false);
+		visitedStoreField.setPrefColumnCount(40);
+		
 		HBox buildsBar = new HBox(8);
 		buildsBar.getChildren().add(buildsVisitedLabel);
 		buildsBar.getChildren().add(buildsVisitedField);
 		buildsBar.getChildren().add(buildsPerSecondLabel);
 		buildsBar.getChildren().add(buildsPerSecondField);
+		buildsBar.getChildren().add(pauseButton);
 		buildsBar.getChildren().add(stopButton);
+		buildsBar.getChildren().add(checkpointButton);
+		
+		HBox visitedStoreBar = new HBox(8);
+		visitedStoreBar.getChildren().add(visitedStoreLabel);
+		visitedStoreBar.getChildren().add(visitedStoreField);
 		
 		topBuildsField = new TextArea();
 		topBuildsField.editableProperty().set(false);
@@ -374,6 +470,7 @@ public class Main extends Application {
 		// organize everything in a vertical box
 		VBox runPane = new VBox(8);
 		runPane.getChildren().add(buildsBar);
+		runPane.getChildren().add(visitedStoreBar);
 		runPane.getChildren().add(topBuildsField);
 		
 		runTab.setContent(runPane);
@@ -389,8 +486,53 @@ public class Main extends Application {
 			if (ew.effect != null) starValueMap.put(ew.effect, ew.weight);
 		}
 		
+		model.setStrategy(strategyComboBox.getValue());
+		applyCheckpointSettings();
 		model.start(starValueMap);
-
+		startUIUpdater();
+	}
+	
+	private void handleResumeCheckpointButton() {
+		// Don't do anything if the build walker is already running
+		if (uiUpdaterThread != null) return;
+		
+		File file = checkpointChooser.showOpenDialog(primaryStage);
+		if (file == null) return;
+		
+		applyCheckpointSettings();
+		try {
+			model.resumeFrom(file);
+		} catch (IOException e) {
+			System.err.println("Failed to resume checkpoint: " + e.getMessage());
+			return;
+		}
+		startUIUpdater();
+	}
+	
+	private void handleAutoCheckpointButton() {
+		// Cancelling the dialog turns automatic checkpoints off
+		autoCheckpointFile = checkpointChooser.showSaveDialog(primaryStage);
+		autoCheckpointButton.setText(autoCheckpointFile == null ? "Checkpoint To..."
+				: "Checkpoint To " + autoCheckpointFile.getName());
+	}
+	
+	private void applyCheckpointSettings() {
+		double seconds;
+		try {
+			seconds = Double.parseDouble(checkpointIntervalField.getText());
+		} catch (NumberFormatException e) {
+			seconds = 0;
+		}
+		if (!(seconds > 0)) {
+			seconds = 300;
+			checkpointIntervalField.setText("300");
+		}
+		model.setCheckpoint(autoCheckpointFile, (long)(seconds * 1000));
+	}
+	
+	private void startUIUpdater() {
+		pauseButton.setText("Pause Run");
+		
 		uiUpdaterThread = new Thread(new UIUpdaterTask());
 		uiUpdaterThread.setDaemon(true);
 		uiUpdaterThread.start();
@@ -398,6 +540,31 @@ public class Main extends Application {
 		tabPane.getSelectionModel().select(runTab);
 	}
 	
+	private void handlePauseButton() {
+		if (uiUpdaterThread == null || !model.isWalking()) return;
+		
+		if (model.isPaused()) {
+			model.resume();
+			pauseButton.setText("Pause Run");
+		} else {
+			model.pause();
+			pauseButton.setText("Resume Run");
+		}
+	}
+	
+	private void handleSaveCheckpointButton() {
+		if (uiUpdaterThread == null || !model.isWalking()) return;
+		
+		File file = checkpointChooser.showSaveDialog(primaryStage);
+		if (file == null) return;
+		
+		try {
+			model.saveCheckpoint(file);
+		} catch (IOException e) {
+			System.err.println("Failed to save checkpoint: " + e.getMessage());
+		}
+	}
+	
 	private void handleStopButton() {
 		if (uiUpdaterThread == null) return;
 		
@@ -416,15 +583,13 @@ public class Main extends Application {
 		File file = fileChooser.showSaveDialog(primaryStage);
 		
 		if (file != null) {
+			Map<String, Double> weights = new LinkedHashMap<String, Double>();
+			for (EffectWeight ew : effectWeights) {
+				if (ew.effect != null) weights.put(ew.effect, ew.weight);
+			}
+			
 			try {
-				PrintWriter writer = new PrintWriter(file);
-
-				// Write each effect/weight pair with a comma separator
-				for (EffectWeight ew : effectWeights) {
-					writer.println(ew.effect + "," + ew.weight);
-				}
-				
-				writer.close();
+				EffectWeights.write(file, weights);
 			} catch (IOException e) {}
 		}
 	}
@@ -434,16 +599,12 @@ public class Main extends Application {
 		File file = fileChooser.showOpenDialog(primaryStage);
 		
 		if (file != null) {
-			try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-				String line;
-				while ((line = br.readLine()) != null) {
-					try {
-						String[] split = line.split(",");
-						EffectWeight ew = new EffectWeight();
-						ew.effect = split[0];
-						ew.weight = Double.parseDouble(split[1]);
-						effectWeights.add(ew);
-					} catch (NumberFormatException e) {}
+			try {
+				for (Map.Entry<String, Double> weight : EffectWeights.read(file).entrySet()) {
+					EffectWeight ew = new EffectWeight();
+					ew.effect = weight.getKey();
+					ew.weight = weight.getValue();
+					effectWeights.add(ew);
 				}
 			} catch (IOException e) {}
 		}
@@ -0,0 +1,92 @@
+package gdbuildmaker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+/**
+ * Checks the packed AffinityValues against arithmetic on each field.
+ */
+public class AffinityValuesTest {
+	private static final Affinity[] AFFINITIES = Affinity.values();
+	private static final int TRIALS = 100_000;
+	
+	@Test
+	public void matchesFieldByFieldArithmetic() {
+		Random random = new Random(1);
+		for (int t = 0; t < TRIALS; t++) {
+			int[] x = randomValues(random);
+			int[] y = randomValues(random);
+			final AffinityValues px = packed(x);
+			final AffinityValues py = packed(y);
+			
+			boolean fulfills = true;
+			boolean overflows = false;
+			int total = 0;
+			for (int a = 0; a < AFFINITIES.length; a++) {
+				fulfills &= x[a] >= y[a];
+				overflows |= x[a] + y[a] > AffinityValues.MAX_VALUE;
+				total += x[a];
+			}
+			assertEquals(fulfills, px.fullfills(py), "fullfills");
+			assertEquals(total, px.total(), "total");
+			
+			long max = AffinityValues.max(px.packed(), py.packed());
+			long saturated = AffinityValues.saturatedSum(px.packed(), py.packed());
+			for (int a = 0; a < AFFINITIES.length; a++) {
+				assertEquals(Math.max(x[a], y[a]), AffinityValues.field(max, a), "max");
+				assertEquals(Math.min(AffinityValues.MAX_VALUE, x[a] + y[a]),
+						AffinityValues.field(saturated, a), "saturatedSum");
+			}
+			
+			if (overflows) {
+				assertThrows(ArithmeticException.class, new Executable() {
+					public void execute() {
+						px.plus(py);
+					}
+				}, "plus");
+			} else {
+				AffinityValues sum = px.plus(py);
+				for (int a = 0; a < AFFINITIES.length; a++) {
+					assertEquals(x[a] + y[a], sum.getValue(AFFINITIES[a]), "plus");
+				}
+			}
+			if (!fulfills) {
+				assertThrows(ArithmeticException.class, new Executable() {
+					public void execute() {
+						px.minus(py);
+					}
+				}, "minus");
+			} else {
+				AffinityValues difference = px.minus(py);
+				for (int a = 0; a < AFFINITIES.length; a++) {
+					assertEquals(x[a] - y[a], difference.getValue(AFFINITIES[a]), "minus");
+				}
+			}
+		}
+	}
+	
+	/*
+	 * Half the values are small, like real requirements, and half span the
+	 * whole range, so sums and differences cross the field limits
+	 */
+	private static int[] randomValues(Random random) {
+		int[] values = new int[AFFINITIES.length];
+		for (int a = 0; a < values.length; a++) {
+			values[a] = random.nextInt(random.nextBoolean() ? AffinityValues.MAX_VALUE + 1 : 20);
+		}
+		return values;
+	}
+	
+	private static AffinityValues packed(int[] values) {
+		AffinityValues packed = new AffinityValues();
+		for (int a = 0; a < values.length; a++) {
+			packed.setValue(AFFINITIES[a], values[a]);
+		}
+		return packed;
+	}
+}
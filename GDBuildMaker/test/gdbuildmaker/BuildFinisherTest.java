@@ -0,0 +1,128 @@
+package gdbuildmaker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class BuildFinisherTest {
+	private static final int CONSTELLATIONS = 20;
+	private static final int WALK_STEPS = 5000;
+	private static final int FINISHED_BUILDS = 500;
+	private static final int FINISH_ROUNDS = 100;
+	
+	@Test
+	public void incrementalFinishMatchesFreshFinisher() {
+		Random random = new Random(3);
+		for (long seed = 1; seed <= 3; seed++) {
+			List<Constellation> constellations = TestConstellations.random(CONSTELLATIONS, seed);
+			Constellation[] byOrdinal = TestConstellations.byOrdinal(constellations);
+			BuildFinisher.Builder builder = new BuildFinisher.Builder(constellations,
+					new RequirementIndex(byOrdinal),
+					Controller.starValues(constellations, TestConstellations.weights()));
+			BuildFinisher incremental = builder.build();
+			
+			// Walk like the walker: add an available constellation, or back out the last one
+			ConstellationSet build = new ConstellationSet(byOrdinal);
+			AffinityValues affinities = new AffinityValues();
+			int buildStars = 0;
+			Deque<Constellation> path = new ArrayDeque<Constellation>();
+			for (int step = 0; step < WALK_STEPS; step++) {
+				List<Constellation> options = new ArrayList<Constellation>();
+				for (Constellation c : constellations) {
+					if (!build.contains(c) && affinities.fullfills(c.getRequirement())
+							&& buildStars + c.numStars() <= Controller.MAX_STARS) {
+						options.add(c);
+					}
+				}
+				if (!options.isEmpty() && (path.isEmpty() || random.nextInt(3) > 0)) {
+					Constellation c = options.get(random.nextInt(options.size()));
+					build.add(c);
+					affinities.add(c.getReward());
+					buildStars += c.numStars();
+					path.push(c);
+				} else if (!path.isEmpty()) {
+					Constellation c = path.pop();
+					build.remove(c);
+					affinities.subtract(c.getReward());
+					buildStars -= c.numStars();
+				}
+				
+				BuildFinisher fresh = builder.build();
+				String where = "seed " + seed + ", step " + step;
+				assertEquals(fresh.finish(build, buildStars, affinities),
+						incremental.finish(build, buildStars, affinities), where);
+				Map<Constellation, Integer> partials = incremental.getPartials();
+				assertEquals(fresh.getPartials(), partials, where);
+				
+				int[] partialStars = incremental.getPartialStars();
+				for (Constellation c : constellations) {
+					Integer stars = partials.get(c);
+					assertEquals(stars == null ? 0 : stars.intValue(),
+							partialStars[c.getOrdinal()], where);
+				}
+			}
+		}
+	}
+	
+	@Test
+	public void finishAllocatesNothingOnceWarm() {
+		com.sun.management.ThreadMXBean threads =
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		assumeTrue(threads.isThreadAllocatedMemorySupported(),
+				"The JVM does not count allocated bytes per thread");
+		threads.setThreadAllocatedMemoryEnabled(true);
+		
+		List<Constellation> constellations = TestConstellations.random(40, 7);
+		Constellation[] byOrdinal = TestConstellations.byOrdinal(constellations);
+		BuildFinisher finisher = new BuildFinisher.Builder(constellations,
+				new RequirementIndex(byOrdinal),
+				Controller.starValues(constellations, TestConstellations.weights())).build();
+		
+		Random random = new Random(1);
+		ConstellationSet[] builds = new ConstellationSet[FINISHED_BUILDS];
+		AffinityValues[] affinities = new AffinityValues[FINISHED_BUILDS];
+		int[] buildStars = new int[FINISHED_BUILDS];
+		for (int i = 0; i < FINISHED_BUILDS; i++) {
+			builds[i] = new ConstellationSet(byOrdinal);
+			affinities[i] = new AffinityValues();
+			for (Constellation c : constellations) {
+				if (random.nextInt(5) == 0 && affinities[i].fullfills(c.getRequirement())
+						&& buildStars[i] + c.numStars() <= Controller.MAX_STARS) {
+					builds[i].add(c);
+					affinities[i].add(c.getReward());
+					buildStars[i] += c.numStars();
+				}
+			}
+		}
+		
+		// The first rounds size the finisher's buffers and let the JIT compile it
+		double sum = 0.0;
+		for (int round = 0; round < FINISH_ROUNDS; round++) {
+			for (int i = 0; i < FINISHED_BUILDS; i++) {
+				sum += finisher.finish(builds[i], buildStars[i], affinities[i]);
+			}
+		}
+		
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int round = 0; round < FINISH_ROUNDS; round++) {
+			for (int i = 0; i < FINISHED_BUILDS; i++) {
+				sum += finisher.finish(builds[i], buildStars[i], affinities[i]);
+				finisher.getPartialStars();
+			}
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+		
+		assertEquals(0L, allocated, "bytes allocated by " + FINISH_ROUNDS * FINISHED_BUILDS
+				+ " finishes with total value " + sum);
+	}
+}
@@ -0,0 +1,113 @@
+package gdbuildmaker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+
+public class BuildWalkerTest {
+	private static final int THREADS = 2;
+	private static final int CONSTELLATIONS = 12;
+	
+	@Test
+	public void walkVisitsEveryReachableBuildOnce() throws InterruptedException {
+		for (long seed = 1; seed <= 3; seed++) {
+			List<Constellation> constellations = TestConstellations.random(CONSTELLATIONS, seed);
+			assertEquals(reachableBuilds(constellations), walk(constellations, false), "seed " + seed);
+		}
+	}
+	
+	@Test
+	public void canonicalWalkEnumeratesTheSameBuilds() throws InterruptedException {
+		List<Constellation> constellations = TestConstellations.random(CONSTELLATIONS, 1);
+		assertEquals(walk(constellations, false), walk(constellations, true));
+	}
+	
+	@Test
+	public void pruningNeedsACanonicalWalk() {
+		List<Constellation> constellations = TestConstellations.random(10, 1);
+		Map<String, Double> weights = TestConstellations.weights();
+		final BuildWalker.Builder builder = new BuildWalker.Builder(
+				Controller.constellationValues(constellations, weights),
+				Controller.starValues(constellations, weights), new TopBuilds())
+				.pruning(true);
+		assertThrows(IllegalStateException.class, new Executable() {
+			public void execute() {
+				builder.build();
+			}
+		});
+		builder.canonical(true).build();
+	}
+	
+	private static long walk(List<Constellation> constellations, boolean canonical)
+			throws InterruptedException {
+		Map<String, Double> weights = TestConstellations.weights();
+		BuildWalker walker = new BuildWalker.Builder(
+				Controller.constellationValues(constellations, weights),
+				Controller.starValues(constellations, weights), new TopBuilds())
+				.canonical(canonical)
+				.build();
+		walker.start(THREADS);
+		while (!walker.isFinished()) {
+			Thread.sleep(1);
+		}
+		walker.stop();
+		return walker.getBuildsVisited();
+	}
+	
+	/*
+	 * Counts the builds reachable from the empty build by the walker's steps,
+	 * keeping each build as a BitSet in a hash set
+	 */
+	private static long reachableBuilds(List<Constellation> constellations) {
+		Constellation[] byOrdinal = TestConstellations.byOrdinal(constellations);
+		Set<BitSet> visited = new HashSet<BitSet>();
+		Deque<BitSet> queue = new ArrayDeque<BitSet>();
+		visited.add(new BitSet());
+		queue.add(new BitSet());
+		while (!queue.isEmpty()) {
+			BitSet build = queue.poll();
+			for (Constellation c : constellations) {
+				BitSet next = (BitSet)build.clone();
+				next.flip(c.getOrdinal());
+				if (isValid(next, byOrdinal, build.get(c.getOrdinal()) ? null : c)
+						&& visited.add(next)) {
+					queue.add(next);
+				}
+			}
+		}
+		return visited.size();
+	}
+	
+	/*
+	 * A build is valid if it has at most MAX_STARS stars, and its rewards
+	 * meet the requirements of all its constellations. An added
+	 * constellation's requirement has to be met before its own reward counts.
+	 */
+	private static boolean isValid(BitSet build, Constellation[] byOrdinal, Constellation added) {
+		int stars = 0;
+		AffinityValues rewards = new AffinityValues();
+		for (int i = build.nextSetBit(0); i >= 0; i = build.nextSetBit(i + 1)) {
+			stars += byOrdinal[i].numStars();
+			rewards.add(byOrdinal[i].getReward());
+		}
+		if (stars > Controller.MAX_STARS) { return false; }
+		
+		if (added != null) {
+			return rewards.minus(added.getReward()).fullfills(added.getRequirement());
+		}
+		for (int i = build.nextSetBit(0); i >= 0; i = build.nextSetBit(i + 1)) {
+			if (!rewards.fullfills(byOrdinal[i].getRequirement())) { return false; }
+		}
+		return true;
+	}
+}
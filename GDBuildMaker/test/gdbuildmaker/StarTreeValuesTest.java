@@ -0,0 +1,120 @@
+package gdbuildmaker;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+public class StarTreeValuesTest {
+	private static final int TREES = 500;
+	private static final int MAX_TREE_STARS = 10;
+	
+	@Test
+	public void bestValuesMatchBruteForce() {
+		Random random = new Random(7);
+		for (int t = 0; t < TREES; t++) {
+			int numStars = 1 + random.nextInt(MAX_TREE_STARS);
+			int[] parents = new int[numStars];
+			for (int s = 0; s < numStars; s++) {
+				parents[s] = s == 0 ? -1 : random.nextInt(s);
+			}
+			Star[] stars = buildTree(parents);
+			Constellation constellation = constellation(stars);
+			
+			// Negative values too, so the best group of k stars isn't always the largest
+			double[] values = new double[numStars];
+			Map<Star, Double> starValues = new HashMap<Star, Double>();
+			for (int s = 0; s < numStars; s++) {
+				values[s] = random.nextInt(21) - 5;
+				starValues.put(stars[s], values[s]);
+			}
+			StarTreeValues treeValues = new StarTreeValues(constellation, StarTreeValues
+					.valuesByOrdinal(Collections.singletonList(constellation), starValues));
+			
+			for (int head = 0; head < numStars; head++) {
+				assertArrayEquals(bruteForce(parents, values, head), treeValues.bestValues(stars[head]),
+						"parents " + Arrays.toString(parents) + ", head " + head);
+			}
+		}
+	}
+	
+	/*
+	 * Star s is numbered s, and its parent is parents[s]; a parent always has
+	 * a lower number than its children
+	 */
+	private static Star[] buildTree(int[] parents) {
+		Star.Builder[] builders = new Star.Builder[parents.length];
+		for (int s = 0; s < parents.length; s++) {
+			builders[s] = new Star.Builder().ordinal(s);
+		}
+		Star[] stars = new Star[parents.length];
+		for (int s = parents.length - 1; s >= 0; s--) {
+			stars[s] = builders[s].build();
+			if (s > 0) {
+				builders[parents[s]].addChild(stars[s]);
+			}
+		}
+		return stars;
+	}
+	
+	private static Constellation constellation(Star[] stars) {
+		Constellation.Builder builder = new Constellation.Builder()
+				.name("T")
+				.ordinal(0)
+				.requirement(new AffinityValues())
+				.reward(new AffinityValues());
+		for (Star star : stars) {
+			builder.addStar(star);
+		}
+		return builder.build();
+	}
+	
+	/*
+	 * Tries every group of stars in head's subtree that contains head and the
+	 * parent of each of its other stars
+	 */
+	private static double[] bruteForce(int[] parents, double[] values, int head) {
+		int[] subtree = new int[parents.length];
+		int size = 0;
+		for (int s = head; s < parents.length; s++) {
+			int ancestor = s;
+			while (ancestor > head) {
+				ancestor = parents[ancestor];
+			}
+			if (ancestor == head) {
+				subtree[size++] = s;
+			}
+		}
+		
+		double[] best = new double[size + 1];
+		Arrays.fill(best, Double.NEGATIVE_INFINITY);
+		best[0] = 0.0;
+		boolean[] inGroup = new boolean[parents.length];
+		for (int mask = 1; mask < 1 << size; mask += 2) {
+			// Bit 0 is head itself
+			Arrays.fill(inGroup, false);
+			for (int i = 0; i < size; i++) {
+				inGroup[subtree[i]] = (mask >> i & 1) != 0;
+			}
+			boolean connected = true;
+			double value = 0.0;
+			for (int i = 0; i < size; i++) {
+				int s = subtree[i];
+				if (inGroup[s]) {
+					connected &= s == head || inGroup[parents[s]];
+					value += values[s];
+				}
+			}
+			if (connected) {
+				int k = Integer.bitCount(mask);
+				best[k] = Math.max(best[k], value);
+			}
+		}
+		return best;
+	}
+}
@@ -0,0 +1,82 @@
+package gdbuildmaker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Random constellations for tests, numbered the way the loader numbers them.
+ * A third of them have no requirement, so walks always have somewhere to start.
+ */
+final class TestConstellations {
+	private TestConstellations() {}
+	
+	static List<Constellation> random(int numConstellations, long seed) {
+		Random random = new Random(seed);
+		Affinity[] affinities = Affinity.values();
+		List<Constellation> constellations = new ArrayList<Constellation>();
+		int nextStar = 0;
+		for (int i = 0; i < numConstellations; i++) {
+			int numStars = 1 + random.nextInt(6);
+			int[] parents = new int[numStars];
+			Star.Builder[] starBuilders = new Star.Builder[numStars];
+			for (int s = 0; s < numStars; s++) {
+				parents[s] = s == 0 ? -1 : random.nextInt(s);
+				starBuilders[s] = new Star.Builder()
+						.ordinal(nextStar + s)
+						.addEffect("e" + random.nextInt(5), 1 + random.nextInt(10));
+			}
+			
+			// Children are built before their parents
+			Star[] stars = new Star[numStars];
+			for (int s = numStars - 1; s >= 0; s--) {
+				stars[s] = starBuilders[s].build();
+				if (s > 0) {
+					starBuilders[parents[s]].addChild(stars[s]);
+				}
+			}
+			nextStar += numStars;
+			
+			AffinityValues requirement = new AffinityValues();
+			if (i >= numConstellations / 3) {
+				requirement.setValue(affinities[random.nextInt(affinities.length)], 1 + random.nextInt(3));
+			}
+			AffinityValues reward = new AffinityValues();
+			reward.setValue(affinities[random.nextInt(affinities.length)], 1 + random.nextInt(3));
+			
+			Constellation.Builder builder = new Constellation.Builder()
+					.name("C" + i)
+					.ordinal(i)
+					.requirement(requirement)
+					.reward(reward);
+			for (Star star : stars) {
+				builder.addStar(star);
+			}
+			constellations.add(builder.build());
+		}
+		return constellations;
+	}
+	
+	/**
+	 * Weights for the effects of random(), one of them zero.
+	 */
+	static Map<String, Double> weights() {
+		Map<String, Double> weights = new HashMap<String, Double>();
+		weights.put("e0", 1.0);
+		weights.put("e1", 2.0);
+		weights.put("e2", 0.5);
+		weights.put("e3", 0.0);
+		weights.put("e4", 1.5);
+		return weights;
+	}
+	
+	static Constellation[] byOrdinal(List<Constellation> constellations) {
+		Constellation[] byOrdinal = new Constellation[constellations.size()];
+		for (Constellation c : constellations) {
+			byOrdinal[c.getOrdinal()] = c;
+		}
+		return byOrdinal;
+	}
+}
@@ -0,0 +1,55 @@
+package gdbuildmaker;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.jupiter.api.Test;
+
+public class VisitedBuildSetTest {
+	private static final int WIDTH = 2;
+	private static final int THREADS = 4;
+	private static final int ADDS_PER_THREAD = 50_000;
+	
+	@Test
+	public void countsMatchAHashSetOfBuilds() throws InterruptedException {
+		final VisitedBuildSet visited = new VisitedBuildSet(WIDTH);
+		final Set<List<Long>> reference = ConcurrentHashMap.newKeySet();
+		final LongAdder added = new LongAdder();
+		
+		// Few distinct builds, so the threads add many of the same ones, the empty build included
+		Thread[] threads = new Thread[THREADS];
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			threads[t] = new Thread(new Runnable() {
+				public void run() {
+					long[] build = new long[WIDTH];
+					for (int i = 0; i < ADDS_PER_THREAD; i++) {
+						build[0] = random.nextInt(1 << 14);
+						build[1] = random.nextInt(4) == 0 ? 0L : 1L << (63 - random.nextInt(2));
+						if (visited.add(build)) {
+							added.increment();
+						}
+						reference.add(Arrays.asList(build[0], build[1]));
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		
+		assertEquals(reference.size(), visited.size(), "visited count");
+		assertEquals(reference.size(), added.sum(), "builds added as new");
+		for (List<Long> build : reference) {
+			assertTrue(visited.contains(new long[] { build.get(0), build.get(1) }), build.toString());
+		}
+	}
+}